@@ -0,0 +1,58 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks. This takes the usual JMH options, but writes the
+// results as JSON to plotmarkers-jmh.json by default so releases can be
+// compared.
+
+public final class BenchmarkRunner
+{
+    private static final String defaultResultFile = "plotmarkers-jmh.json";
+    
+    private BenchmarkRunner()
+    {
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException
+    {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+        
+        if (!cmdOptions.getResultFormat().hasValue())
+        {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmdOptions.getResult().hasValue())
+        {
+            options.result(defaultResultFile);
+        }
+        
+        new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,119 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.bluecolored.bluemap.api.math.Color;
+
+// Time to get the settings for one marker, reading each key from the config
+// file, and from the WorldStyle that Config builds when the config is loaded.
+// Both read the same in-memory config.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConfigBenchmark
+{
+    private static final String configText =
+        "date-format: MM/dd/yy\n" +
+        "worlds:\n" +
+        "  plotworld:\n" +
+        "    override-y: false\n" +
+        "    y: 63\n" +
+        "    custom-icon: ''\n" +
+        "    custom-icon-anchor-x: 0\n" +
+        "    custom-icon-anchor-y: 0\n" +
+        "    fill-color: '#3388ff'\n" +
+        "    fill-opacity: 0.1\n" +
+        "    line-color: '#3388ff'\n" +
+        "    line-opacity: 1.0\n" +
+        "    line-width: 5\n";
+    
+    private YamlConfiguration yaml;
+    private Config config;
+    
+    // -------------------------------------------------------------------------
+    
+    @Setup
+    public void setup() throws InvalidConfigurationException
+    {
+        yaml = new YamlConfiguration();
+        yaml.loadFromString(configText);
+        
+        config = new Config(yaml);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    @Benchmark
+    public void configKeys(Blackhole bh)
+    {
+        String world = SyntheticPlots.worldName;
+        bh.consume(yaml.getBoolean("worlds." + world + ".override-y", true));
+        bh.consume(yaml.getInt("worlds." + world + ".y", 63));
+        bh.consume(yaml.getString("worlds." + world + ".custom-icon", ""));
+        bh.consume(yaml.getInt("worlds." + world + ".custom-icon-anchor-x", 0));
+        bh.consume(yaml.getInt("worlds." + world + ".custom-icon-anchor-y", 0));
+        bh.consume(new Color(parseColor(yaml.getString("worlds." + world + ".fill-color", "#3388ff")),
+                             (float)yaml.getDouble("worlds." + world + ".fill-opacity", 0.1)));
+        bh.consume(new Color(parseColor(yaml.getString("worlds." + world + ".line-color", "#3388ff")),
+                             (float)yaml.getDouble("worlds." + world + ".line-opacity", 1.0)));
+        bh.consume(yaml.getInt("worlds." + world + ".line-width", 5));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    @Benchmark
+    public void worldStyle(Blackhole bh)
+    {
+        WorldStyle style = config.getStyle(SyntheticPlots.worldName);
+        bh.consume(style.overrideY);
+        bh.consume(style.y);
+        bh.consume(style.customIcon);
+        bh.consume(style.customIconAnchorX);
+        bh.consume(style.customIconAnchorY);
+        bh.consume(style.fillColor);
+        bh.consume(style.lineColor);
+        bh.consume(style.lineWidth);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private static int parseColor(String colorStr)
+    {
+        return Integer.parseUnsignedInt(colorStr.substring(1), 16);
+    }
+
+}
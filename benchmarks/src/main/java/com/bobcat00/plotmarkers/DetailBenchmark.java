@@ -0,0 +1,90 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Time to create the detail text for a marker. Date-only formats are cached
+// by day; formats with a time aren't.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DetailBenchmark
+{
+    @Param({"MM/dd/yy", "yyyy-MM-dd HH:mm"})
+    String dateFormat;
+    
+    private PlotSnapshot[] plots;
+    private DateFormatter format;
+    private int next;
+    
+    // -------------------------------------------------------------------------
+    
+    @Setup
+    public void setup()
+    {
+        plots = SyntheticPlots.single(10000);
+        format = new DateFormatter(dateFormat);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    @Benchmark
+    public String getDetail()
+    {
+        PlotSnapshot plot = plots[next];
+        next = (next + 1) % plots.length;
+        return PoiMarkers.getDetail(plot, format);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // The same text using a new SimpleDateFormat for each marker, for
+    // comparison
+    
+    @Benchmark
+    public String simpleDateFormat()
+    {
+        PlotSnapshot plot = plots[next];
+        next = (next + 1) % plots.length;
+        
+        SimpleDateFormat sdf = new SimpleDateFormat(dateFormat);
+        return plot.ownerInfo.name + "<br>" +
+               plot.idX + ";" + plot.idZ + "<br>" +
+               sdf.format(new Date(plot.ownerInfo.firstPlayed)) + "<br>" +
+               sdf.format(new Date(plot.ownerInfo.lastPlayed));
+    }
+
+}
@@ -0,0 +1,84 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.bluecolored.bluemap.api.markers.Marker;
+
+// Time to build one POI marker, cycling through many plots so the date cache
+// sees a realistic mix of dates
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PoiMarkerBenchmark
+{
+    @Param({"10000"})
+    int plotCount;
+    
+    // Whether the world has a custom icon
+    @Param({"false", "true"})
+    boolean customIcon;
+    
+    private PlotSnapshot[] plots;
+    private MarkerKeys keys;
+    private WorldStyle style;
+    private DateFormatter format;
+    private String iconUrl;
+    private int next;
+    
+    // -------------------------------------------------------------------------
+    
+    @Setup
+    public void setup()
+    {
+        plots = SyntheticPlots.single(plotCount);
+        keys = new MarkerKeys(PoiMarkers.keyPrefix, "poi:");
+        style = SyntheticPlots.style(false);
+        format = new DateFormatter("MM/dd/yy");
+        iconUrl = customIcon ? "maps/world/assets/icon.png" : null;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    @Benchmark
+    public Map<String, Marker> buildMarker()
+    {
+        PlotSnapshot plot = plots[next];
+        next = (next + 1) % plots.length;
+        String markerId = keys.markerId(keys.key(plot.worldName, plot.idX, plot.idZ));
+        return PoiMarkers.buildMarker(plot, markerId, style, format, iconUrl);
+    }
+
+}
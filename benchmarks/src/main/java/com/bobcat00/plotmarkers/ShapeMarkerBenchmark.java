@@ -0,0 +1,110 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.math.Shape;
+
+// Time to build the shape for a group of merged plots, for each engine and
+// with and without the geometry cache. A cache size of 0 creates the polygons
+// every time, which is what happens the first time a pattern is seen.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ShapeMarkerBenchmark
+{
+    @Param({"GRID", "CHEESE"})
+    GeometryCache.Engine engine;
+    
+    @Param({"0", "1024"})
+    int cacheSize;
+    
+    @Param({"square", "ring", "comb", "holes", "random"})
+    String pattern;
+    
+    // Plots on each side
+    @Param({"2", "8", "24"})
+    int size;
+    
+    private PlotSnapshot plot;
+    private int[] cells;
+    private String markerId;
+    private WorldStyle style;
+    private DateFormatter format;
+    private GeometryCache geometryCache;
+    
+    // -------------------------------------------------------------------------
+    
+    @Setup
+    public void setup()
+    {
+        plot = SyntheticPlots.merged(pattern, size);
+        style = SyntheticPlots.style(false);
+        format = new DateFormatter("MM/dd/yy");
+        geometryCache = new GeometryCache(cacheSize, engine);
+        
+        MarkerKeys keys = new MarkerKeys(ShapeMarkers.keyPrefix, "shape:");
+        markerId = keys.markerId(keys.key(plot.worldName, plot.idX, plot.idZ));
+        
+        cells = new int[plot.connected.length];
+        for (int i = 0; i < cells.length; ++i)
+        {
+            cells[i] = plot.connected[i] - 1;
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // The whole marker, including the label and detail
+    
+    @Benchmark
+    public Map<String, Marker> buildShape()
+    {
+        return ShapeMarkers.buildShape(plot, markerId, style, format, geometryCache, SyntheticPlots.cellSize);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Just the polygons
+    
+    @Benchmark
+    public List<Shape[]> getPolygons()
+    {
+        return geometryCache.getPolygons(SyntheticPlots.cellSize, cells);
+    }
+
+}
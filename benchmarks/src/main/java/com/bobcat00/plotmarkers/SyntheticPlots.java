@@ -0,0 +1,161 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import com.flowpowered.math.vector.Vector2d;
+
+import de.bluecolored.bluemap.api.math.Color;
+
+// Plot snapshots and styles for the benchmarks, made up without PlotSquared or
+// a server. Plots are 32 blocks with a 7 block road, like the PlotSquared
+// defaults.
+
+final class SyntheticPlots
+{
+    static final String worldName = "plotworld";
+    static final int plotSize = 32;
+    static final int roadWidth = 7;
+    static final Vector2d cellSize = Vector2d.from(plotSize + roadWidth, plotSize + roadWidth);
+    
+    // Merged plots are placed away from the origin so the cached polygons
+    // have to be moved
+    private static final int mergeOffset = 10;
+    
+    private static final long day = 24L * 60L * 60L * 1000L;
+    private static final long now = 1700000000000L;
+    
+    private SyntheticPlots()
+    {
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Unmerged plots in a square, each with a different owner and dates
+    
+    static PlotSnapshot[] single(int count)
+    {
+        Random random = new Random(count);
+        PlotSnapshot[] plots = new PlotSnapshot[count];
+        int side = (int)Math.ceil(Math.sqrt(count));
+        for (int i = 0; i < count; ++i)
+        {
+            int idX = i % side + 1;
+            int idZ = i / side + 1;
+            plots[i] = create(idX, idZ, new int[] { idX, idZ }, random);
+        }
+        return plots;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // A group of merged plots. The patterns are:
+    //   square - size x size plots
+    //   ring   - a square with the inside removed, which has a hole
+    //   comb   - a row with every other column extending down, which has a
+    //            long outline
+    //   holes  - a square with every other plot removed inside, which has
+    //            many holes
+    //   random - a square with about 10% of the inside plots removed
+    
+    static PlotSnapshot merged(String pattern, int size)
+    {
+        List<Integer> cells = new ArrayList<Integer>();
+        Random random = new Random(size);
+        for (int x = 0; x < size; ++x)
+        {
+            for (int z = 0; z < size; ++z)
+            {
+                boolean edge = x == 0 || z == 0 || x == size - 1 || z == size - 1;
+                boolean add;
+                switch (pattern)
+                {
+                case "square":
+                    add = true;
+                    break;
+                case "ring":
+                    add = edge;
+                    break;
+                case "comb":
+                    add = z == 0 || x % 2 == 0;
+                    break;
+                case "holes":
+                    add = edge || x % 2 == 0 || z % 2 == 0;
+                    break;
+                case "random":
+                    add = edge || random.nextInt(10) != 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown pattern " + pattern);
+                }
+                if (add)
+                {
+                    cells.add(x + mergeOffset);
+                    cells.add(z + mergeOffset);
+                }
+            }
+        }
+        
+        int[] connected = new int[cells.size()];
+        for (int i = 0; i < connected.length; ++i)
+        {
+            connected[i] = cells.get(i);
+        }
+        return create(mergeOffset, mergeOffset, connected, random);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Style with the config file defaults
+    
+    static WorldStyle style(boolean overrideY)
+    {
+        return new WorldStyle(overrideY,
+                              63,
+                              "",
+                              0,
+                              0,
+                              new Color(0x3388ff, 0.1f),
+                              new Color(0x3388ff, 1.0f),
+                              5,
+                              0.0);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private static PlotSnapshot create(int idX, int idZ, int[] connected, Random random)
+    {
+        int bottomX = (idX - 1) * (plotSize + roadWidth) + 4;
+        int bottomZ = (idZ - 1) * (plotSize + roadWidth) + 4;
+        
+        // Owners played sometime in the last two years
+        long firstPlayed = now - (365 + random.nextInt(365)) * day - random.nextInt((int)day);
+        long lastPlayed = now - random.nextInt(365) * day - random.nextInt((int)day);
+        UUID owner = new UUID(random.nextLong(), random.nextLong());
+        OwnerCache.Owner ownerInfo = new OwnerCache.Owner("Player" + random.nextInt(100000), firstPlayed, lastPlayed);
+        
+        return new PlotSnapshot(worldName, idX, idZ,
+                                bottomX, -64, bottomZ,
+                                bottomX + plotSize - 1, 319, bottomZ + plotSize - 1,
+                                owner, ownerInfo, true, connected);
+    }
+
+}
@@ -0,0 +1,99 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
+
+public final class Commands implements TabExecutor
+{
+    private PlotMarkers plugin;
+    
+    private final List<String> subcommands = Arrays.asList("rebuild", "reload", "stats");
+    
+    // -------------------------------------------------------------------------
+    
+    public Commands(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // /plotmarkers <subcommand>. On Folia, a player's command is on their
+    // region's thread, so the work is moved to the global region thread.
+    
+    @Override
+    public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args)
+    {
+        if (args.length == 2 && args[0].equalsIgnoreCase("rebuild"))
+        {
+            plugin.platformScheduler.runOnGlobal(() -> plugin.listeners.rebuild(sender, args[1]));
+            return true;
+        }
+        
+        if (args.length != 1)
+        {
+            return false;
+        }
+        
+        if (args[0].equalsIgnoreCase("rebuild"))
+        {
+            plugin.platformScheduler.runOnGlobal(() -> plugin.listeners.rebuild(sender, null));
+            return true;
+        }
+        
+        if (args[0].equalsIgnoreCase("reload"))
+        {
+            plugin.platformScheduler.runOnGlobal(() -> plugin.listeners.reload(sender));
+            return true;
+        }
+        
+        if (args[0].equalsIgnoreCase("stats"))
+        {
+            plugin.platformScheduler.runOnGlobal(() -> plugin.stats.report(sender));
+            return true;
+        }
+        
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command cmd, String label, String[] args)
+    {
+        List<String> completions = new ArrayList<String>();
+        if (args.length == 1)
+        {
+            for (String subcommand : subcommands)
+            {
+                if (subcommand.startsWith(args[0].toLowerCase()))
+                {
+                    completions.add(subcommand);
+                }
+            }
+        }
+        return completions;
+    }
+
+}
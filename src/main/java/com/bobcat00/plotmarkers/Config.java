@@ -18,19 +18,40 @@ package com.bobcat00.plotmarkers;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.logging.Logger;
 
 import org.bukkit.configuration.ConfigurationSection;
 
 import com.plotsquared.core.plot.PlotArea;
 
+import de.bluecolored.bluemap.api.math.Color;
+
 public class Config
 {
     private PlotMarkers plugin;
     
+    // Read instead of the config file when there's no plugin
+    private ConfigurationSection memoryConfig = null;
+    
     private boolean defaultOverrideY = true;
     private int defaultY = 63;
+    private int defaultOwnerCacheSize = 5000;
+    private int defaultWorkerThreads = 2;
+    private String defaultShapeEngine = "grid";
+    private int defaultPartitionSize = 0;
+    private int defaultClusterSize = 0;
+    private double defaultClusterDistance = 1000.0;
+    private int defaultReconcileInterval = 60;
+    
+    // Marker styles for each world and the date formatter, rebuilt when the
+    // config is loaded
+    private volatile Map<String, WorldStyle> styles = Collections.emptyMap();
+    private volatile DateFormatter dateFormatter;
     
     // Constructor
     
@@ -54,9 +75,44 @@ public class Config
             
             plugin.getConfig().set("date-format", "MM/dd/yy");
             plugin.getConfig().setComments("date-format",
-                Arrays.asList("The date format in the icon pop-ups. See Java's SimpleDateFormat.",
+                Arrays.asList("The date format in the icon pop-ups. See Java's DateTimeFormatter.",
                               "Examples include MM/dd/yy, dd/MM/yy, and yy/MM/dd."));
             
+            plugin.getConfig().set("owner-cache-size", defaultOwnerCacheSize);
+            plugin.getConfig().setComments("owner-cache-size",
+                Arrays.asList("Maximum number of plot owners whose name and dates are kept in memory."));
+            
+            plugin.getConfig().set("worker-threads", defaultWorkerThreads);
+            plugin.getConfig().setComments("worker-threads",
+                Arrays.asList("Number of background threads used to build the markers."));
+            
+            plugin.getConfig().set("shape-engine", defaultShapeEngine);
+            plugin.getConfig().setComments("shape-engine",
+                Arrays.asList("How the outlines of merged plots are created. grid is faster for large merges.",
+                              "cheese uses BMUtils instead. Valid values are grid and cheese."));
+            
+            plugin.getConfig().set("partition-size", defaultPartitionSize);
+            plugin.getConfig().setComments("partition-size",
+                Arrays.asList("Split each world's markers into marker sets covering this many plots on a side,",
+                              "so an update only changes one small set. Only worth it for worlds with tens of",
+                              "thousands of plots. BlueMap can't toggle a group of sets together, so when this is",
+                              "on the Plots and Shapes layers are always shown and aren't in BlueMap's menu.",
+                              "0 uses one set per world, which can be toggled. Requires a restart."));
+            
+            plugin.getConfig().set("cluster-size", defaultClusterSize);
+            plugin.getConfig().setComments("cluster-size",
+                Arrays.asList("Group the plot icons into square cells of this many blocks, shown as one marker",
+                              "with the number of plots when zoomed out. 0 turns clusters off."));
+            
+            plugin.getConfig().set("cluster-distance", defaultClusterDistance);
+            plugin.getConfig().setComments("cluster-distance",
+                Arrays.asList("Camera distance at which the plot icons are replaced by the clusters."));
+            
+            plugin.getConfig().set("reconcile-interval", defaultReconcileInterval);
+            plugin.getConfig().setComments("reconcile-interval",
+                Arrays.asList("Minutes between checks which fix markers that don't match the plots, e.g. after",
+                              "PlotSquared expires plots. 0 turns the checks off."));
+            
             // Write world configs
             boolean firstWorld = true;
             for (String world : worlds)
@@ -91,6 +147,31 @@ public class Config
             }
             plugin.saveConfig();
         }
+        
+        loadSettings();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Config which reads an in-memory config instead of the config file, for
+    // the benchmarks
+    
+    Config(ConfigurationSection memoryConfig)
+    {
+        this.memoryConfig = memoryConfig;
+        loadSettings();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private ConfigurationSection getConfig()
+    {
+        return plugin != null ? plugin.getConfig() : memoryConfig;
+    }
+    
+    private Logger getLogger()
+    {
+        return plugin != null ? plugin.getLogger() : Logger.getLogger("PlotMarkers");
     }
     
     // -------------------------------------------------------------------------
@@ -99,7 +180,88 @@ public class Config
     
     public String getDateFormat()
     {
-        return plugin.getConfig().getString("date-format", "MM/dd/yy");
+        return getConfig().getString("date-format", "MM/dd/yy");
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the formatter for the date format. This is safe to use from any
+    // thread.
+    
+    public DateFormatter getDateFormatter()
+    {
+        return dateFormatter;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the maximum number of entries in the owner cache
+    
+    public int getOwnerCacheSize()
+    {
+        return getConfig().getInt("owner-cache-size", defaultOwnerCacheSize);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the number of threads used to build markers
+    
+    public int getWorkerThreads()
+    {
+        return getConfig().getInt("worker-threads", defaultWorkerThreads);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the engine used to create the shapes of merged plots
+    
+    public GeometryCache.Engine getShapeEngine()
+    {
+        String engine = getConfig().getString("shape-engine", defaultShapeEngine);
+        if (engine.equalsIgnoreCase("cheese"))
+        {
+            return GeometryCache.Engine.CHEESE;
+        }
+        if (!engine.equalsIgnoreCase("grid"))
+        {
+            getLogger().warning("Invalid shape-engine " + engine + ", using grid.");
+        }
+        return GeometryCache.Engine.GRID;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the number of plots on a side of each marker set partition, 0 if
+    // worlds aren't partitioned
+    
+    public int getPartitionSize()
+    {
+        return Math.max(getConfig().getInt("partition-size", defaultPartitionSize), 0);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the size in blocks of the POI cluster cells, 0 if clustering is off
+    
+    public int getClusterSize()
+    {
+        return Math.max(getConfig().getInt("cluster-size", defaultClusterSize), 0);
+    }
+    
+    // Get the camera distance where the clusters replace the POI markers
+    
+    public double getClusterDistance()
+    {
+        return getConfig().getDouble("cluster-distance", defaultClusterDistance);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the minutes between reconcile runs, 0 if they're off
+    
+    public int getReconcileInterval()
+    {
+        return Math.max(getConfig().getInt("reconcile-interval", defaultReconcileInterval), 0);
     }
     
     // -------------------------------------------------------------------------
@@ -108,12 +270,12 @@ public class Config
     
     public Set<String> getWorlds()
     {
-        ConfigurationSection confSect = plugin.getConfig().getConfigurationSection("worlds");
+        ConfigurationSection confSect = getConfig().getConfigurationSection("worlds");
         if (confSect != null)
         {
             return confSect.getKeys(false);
         }
-        return null;
+        return Collections.emptySet();
     }
     
     // -------------------------------------------------------------------------
@@ -123,9 +285,9 @@ public class Config
     
     public Integer getY(String world)
     {
-        if (plugin.getConfig().getBoolean("worlds." + world + ".override-y", defaultOverrideY))
+        if (getConfig().getBoolean("worlds." + world + ".override-y", defaultOverrideY))
         {
-            return plugin.getConfig().getInt("worlds." + world + ".y", defaultY);
+            return getConfig().getInt("worlds." + world + ".y", defaultY);
         }
         else
         {
@@ -139,7 +301,7 @@ public class Config
     
     public String getCustomIcon(String world)
     {
-        return plugin.getConfig().getString("worlds." + world + ".custom-icon", "");
+        return getConfig().getString("worlds." + world + ".custom-icon", "");
     }
     
     // -------------------------------------------------------------------------
@@ -148,7 +310,7 @@ public class Config
     
     public int getCustomIconAnchorX(String world)
     {
-        return plugin.getConfig().getInt("worlds." + world + ".custom-icon-anchor-x", 0);
+        return getConfig().getInt("worlds." + world + ".custom-icon-anchor-x", 0);
     }
     
     // -------------------------------------------------------------------------
@@ -157,7 +319,7 @@ public class Config
     
     public int getCustomIconAnchorY(String world)
     {
-        return plugin.getConfig().getInt("worlds." + world + ".custom-icon-anchor-y", 0);
+        return getConfig().getInt("worlds." + world + ".custom-icon-anchor-y", 0);
     }
     
     // -------------------------------------------------------------------------
@@ -167,7 +329,7 @@ public class Config
     public int getFillColor(String world)
     {
         int color = 0x3388ff;
-        String colorStr = plugin.getConfig().getString("worlds." + world + ".fill-color", "#3388ff");
+        String colorStr = getConfig().getString("worlds." + world + ".fill-color", "#3388ff");
         try
         {
             if (colorStr.charAt(0) != '#')
@@ -178,7 +340,7 @@ public class Config
         }
         catch (NumberFormatException e)
         {
-            plugin.getLogger().warning("Invalid color for " + world + ".fill-color: " + e.getMessage());
+            getLogger().warning("Invalid color for " + world + ".fill-color: " + e.getMessage());
         }
         return color;
     }
@@ -189,7 +351,7 @@ public class Config
     
     public float getFillOpacity(String world)
     {
-        return (float)plugin.getConfig().getDouble("worlds." + world + ".fill-opacity", 0.1);
+        return (float)getConfig().getDouble("worlds." + world + ".fill-opacity", 0.1);
     }
     
     // -------------------------------------------------------------------------
@@ -199,7 +361,7 @@ public class Config
     public int getLineColor(String world)
     {
         int color = 0x3388ff;
-        String colorStr = plugin.getConfig().getString("worlds." + world + ".line-color", "#3388ff");
+        String colorStr = getConfig().getString("worlds." + world + ".line-color", "#3388ff");
         try
         {
             if (colorStr.charAt(0) != '#')
@@ -210,7 +372,7 @@ public class Config
         }
         catch (NumberFormatException e)
         {
-            plugin.getLogger().warning("Invalid color for " + world + ".line-color: " + e.getMessage());
+            getLogger().warning("Invalid color for " + world + ".line-color: " + e.getMessage());
         }
         return color;
     }
@@ -221,7 +383,7 @@ public class Config
     
     public float getLineOpacity(String world)
     {
-        return (float)plugin.getConfig().getDouble("worlds." + world + ".line-opacity", 1.0);
+        return (float)getConfig().getDouble("worlds." + world + ".line-opacity", 1.0);
     }
     
     // -------------------------------------------------------------------------
@@ -230,7 +392,7 @@ public class Config
     
     public int getLineWidth(String world)
     {
-        return plugin.getConfig().getInt("worlds." + world + ".line-width", 5);
+        return getConfig().getInt("worlds." + world + ".line-width", 5);
     }
     
     // -------------------------------------------------------------------------
@@ -240,6 +402,55 @@ public class Config
     public void reloadConfig()
     {
         plugin.reloadConfig();
+        loadSettings();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Build the date formatter and the marker style for each world. Any
+    // invalid formats or colors are reported here, once per load.
+    
+    private void loadSettings()
+    {
+        String dateFormat = getDateFormat();
+        try
+        {
+            dateFormatter = new DateFormatter(dateFormat);
+        }
+        catch (IllegalArgumentException e)
+        {
+            getLogger().warning("Invalid date-format " + dateFormat + ": " + e.getMessage());
+            dateFormatter = new DateFormatter("MM/dd/yy");
+        }
+        
+        Map<String, WorldStyle> newStyles = new HashMap<String, WorldStyle>();
+        
+        for (String world : getWorlds())
+        {
+            Integer y = getY(world);
+            WorldStyle style = new WorldStyle(y != null,
+                                              y != null ? y : defaultY,
+                                              getCustomIcon(world),
+                                              getCustomIconAnchorX(world),
+                                              getCustomIconAnchorY(world),
+                                              new Color(getFillColor(world), getFillOpacity(world)),
+                                              new Color(getLineColor(world), getLineOpacity(world)),
+                                              getLineWidth(world),
+                                              getClusterSize() > 0 ? getClusterDistance() : 0.0);
+            newStyles.put(world, style);
+        }
+        
+        styles = Collections.unmodifiableMap(newStyles);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the marker style for this world. Returns null if the world isn't in
+    // the config file.
+    
+    public WorldStyle getStyle(String world)
+    {
+        return styles.get(world);
     }
 
 }
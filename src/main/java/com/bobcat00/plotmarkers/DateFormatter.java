@@ -0,0 +1,96 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Formats the first and last played dates in the marker details. This is
+// thread-safe. Many owners share the same dates, so the formatted strings are
+// cached by day.
+
+public final class DateFormatter
+{
+    private static final long millisPerDay = 24L * 60L * 60L * 1000L;
+    
+    // Limit on the number of cached days. About 27 years of distinct dates.
+    private static final int maxCacheSize = 10000;
+    
+    private final DateTimeFormatter formatter;
+    private final ZoneId zone;
+    
+    // False if the pattern has time fields, so it can't be cached by day
+    private final boolean dateOnly;
+    
+    private final ConcurrentHashMap<Long, String> cache = new ConcurrentHashMap<Long, String>();
+    
+    // -------------------------------------------------------------------------
+    
+    // Throws IllegalArgumentException if the pattern is invalid
+    
+    public DateFormatter(String pattern)
+    {
+        this.formatter = DateTimeFormatter.ofPattern(pattern);
+        this.zone = ZoneId.systemDefault();
+        
+        boolean dateOnly = true;
+        try
+        {
+            formatter.format(LocalDate.ofEpochDay(0));
+        }
+        catch (DateTimeException e)
+        {
+            dateOnly = false;
+        }
+        this.dateOnly = dateOnly;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Format a time in milliseconds since the epoch
+    
+    public String format(long millis)
+    {
+        Instant instant = Instant.ofEpochMilli(millis);
+        
+        if (!dateOnly)
+        {
+            return formatter.format(instant.atZone(zone));
+        }
+        
+        // Day number in the local time zone
+        long offset = zone.getRules().getOffset(instant).getTotalSeconds() * 1000L;
+        long epochDay = Math.floorDiv(millis + offset, millisPerDay);
+        
+        String formatted = cache.get(epochDay);
+        if (formatted == null)
+        {
+            if (cache.size() >= maxCacheSize)
+            {
+                cache.clear();
+            }
+            formatted = formatter.format(LocalDate.ofEpochDay(epochDay));
+            cache.put(epochDay, formatted);
+        }
+        return formatted;
+    }
+
+}
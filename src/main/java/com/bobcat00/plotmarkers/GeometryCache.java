@@ -0,0 +1,284 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flowpowered.math.vector.Vector2d;
+import com.flowpowered.math.vector.Vector2i;
+import com.technicjelle.BMUtils.Cheese;
+
+import de.bluecolored.bluemap.api.math.Shape;
+
+// Cache of the polygons for groups of merged plots. Most merges are the same
+// few patterns (1x1, 2x1, 2x2, etc.), so the polygons are cached by the cell
+// pattern shifted to the origin and the cell size. A cached polygon is then
+// translated to the group's position. This is thread-safe.
+
+public final class GeometryCache
+{
+    // How the polygons are created
+    
+    public enum Engine
+    {
+        GRID,   // GridUnion
+        CHEESE  // BMUtils
+    }
+    
+    // Cell pattern shifted to the origin, plus the cell size
+    
+    private static final class Key
+    {
+        final double sizeX;
+        final double sizeZ;
+        final long[] cells;
+        final int hash;
+        
+        Key(double sizeX, double sizeZ, long[] cells)
+        {
+            this.sizeX = sizeX;
+            this.sizeZ = sizeZ;
+            this.cells = cells;
+            this.hash = 31 * (31 * Double.hashCode(sizeX) + Double.hashCode(sizeZ)) + Arrays.hashCode(cells);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key)obj;
+            return sizeX == other.sizeX && sizeZ == other.sizeZ && Arrays.equals(cells, other.cells);
+        }
+    }
+    
+    private final int maxSize;
+    
+    private volatile Engine engine;
+    
+    // Each polygon is the outline followed by the holes, at the origin
+    private final Map<Key, List<Shape[]>> cache;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    // -------------------------------------------------------------------------
+    
+    // A maxSize of 0 turns off caching
+    
+    public GeometryCache(int maxSize, Engine engine)
+    {
+        this.maxSize = Math.max(maxSize, 0);
+        this.engine = engine;
+        
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<Key, List<Shape[]>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<Shape[]>> eldest)
+            {
+                if (size() > GeometryCache.this.maxSize)
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Change the engine. The cache is cleared so the new engine is used for
+    // all the shapes created from now on.
+    
+    public void setEngine(Engine engine)
+    {
+        if (engine != this.engine)
+        {
+            this.engine = engine;
+            cache.clear();
+        }
+    }
+    
+    public Engine getEngine()
+    {
+        return engine;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the polygons for a group of cells, given as x,z pairs. Each polygon
+    // is the outline followed by the holes.
+    
+    public List<Shape[]> getPolygons(Vector2d cellSize, int[] cells)
+    {
+        // Shift to the origin
+        
+        int minX = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        for (int i = 0; i < cells.length; i += 2)
+        {
+            minX = Math.min(minX, cells[i]);
+            minZ = Math.min(minZ, cells[i+1]);
+        }
+        
+        long[] normalized = new long[cells.length / 2];
+        for (int i = 0; i < normalized.length; ++i)
+        {
+            normalized[i] = ((long)(cells[i*2] - minX) << 32) | ((cells[i*2+1] - minZ) & 0xffffffffL);
+        }
+        Arrays.sort(normalized);
+        
+        Key key = new Key(cellSize.getX(), cellSize.getY(), normalized);
+        
+        List<Shape[]> polygons = cache.get(key);
+        if (polygons != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+            polygons = createPolygons(cellSize, normalized);
+            if (maxSize > 0)
+            {
+                cache.put(key, polygons);
+            }
+        }
+        
+        // Move to the group's position
+        
+        double offsetX = minX * cellSize.getX();
+        double offsetZ = minZ * cellSize.getY();
+        
+        List<Shape[]> translated = new ArrayList<Shape[]>(polygons.size());
+        for (Shape[] polygon : polygons)
+        {
+            Shape[] shapes = new Shape[polygon.length];
+            for (int i = 0; i < polygon.length; ++i)
+            {
+                shapes[i] = translate(polygon[i], offsetX, offsetZ);
+            }
+            translated.add(shapes);
+        }
+        return translated;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Create the polygons for a pattern at the origin
+    
+    private List<Shape[]> createPolygons(Vector2d cellSize, long[] normalized)
+    {
+        if (engine == Engine.GRID)
+        {
+            return GridUnion.createPolygons(cellSize, normalized);
+        }
+        
+        Vector2i[] cells = new Vector2i[normalized.length];
+        for (int i = 0; i < normalized.length; ++i)
+        {
+            cells[i] = new Vector2i((int)(normalized[i] >> 32), (int)normalized[i]);
+        }
+        
+        Collection<Cheese> platter = Cheese.createPlatterFromCells(cellSize, cells);
+        
+        List<Shape[]> polygons = new ArrayList<Shape[]>(platter.size());
+        for (Cheese cheese : platter)
+        {
+            Shape[] polygon = new Shape[cheese.getHoles().size() + 1];
+            polygon[0] = cheese.getShape();
+            int i = 1;
+            for (Shape hole : cheese.getHoles())
+            {
+                polygon[i++] = hole;
+            }
+            polygons.add(polygon);
+        }
+        return polygons;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private Shape translate(Shape shape, double offsetX, double offsetZ)
+    {
+        if (offsetX == 0.0 && offsetZ == 0.0)
+        {
+            // Shapes are immutable, so this one can be shared
+            return shape;
+        }
+        
+        Vector2d[] points = new Vector2d[shape.getPointCount()];
+        for (int i = 0; i < points.length; ++i)
+        {
+            Vector2d point = shape.getPoint(i);
+            points[i] = new Vector2d(point.getX() + offsetX, point.getY() + offsetZ);
+        }
+        return new Shape(points);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Statistics
+    
+    public int size()
+    {
+        return cache.size();
+    }
+    
+    public long getHits()
+    {
+        return hits.get();
+    }
+    
+    public long getMisses()
+    {
+        return misses.get();
+    }
+    
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+    
+    // Fraction of lookups found in the cache
+    
+    public double getHitRate()
+    {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double)hits.get() / total;
+    }
+
+}
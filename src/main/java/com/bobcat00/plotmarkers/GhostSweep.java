@@ -0,0 +1,103 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Iterator;
+
+// Removes one producer's markers in one world which are left over, first the
+// markers of plots which are gone, then the markers which don't belong to any
+// plot. The Reconciler runs it in short slices on the main thread. Markers
+// published between slices are checked when they're reached, so they're kept.
+
+public final class GhostSweep
+{
+    private MarkerProducer producer;
+    private MarkerKeys keys;
+    private MarkerLayer layer;
+    private String worldName;
+    private Reconciler reconciler;
+    
+    // Null until the sweep starts
+    private Iterator<Long> keyIterator = null;
+    private MarkerLayer.Sweep markerSweep = null;
+    
+    private int plotsRemoved = 0;
+    
+    // -------------------------------------------------------------------------
+    
+    public GhostSweep(MarkerProducer producer, MarkerKeys keys, MarkerLayer layer, String worldName, Reconciler reconciler)
+    {
+        this.producer = producer;
+        this.keys = keys;
+        this.layer = layer;
+        this.worldName = worldName;
+        this.reconciler = reconciler;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Sweep until the deadline. Returns true if there's more to do.
+    
+    public boolean step(long deadline)
+    {
+        if (keyIterator == null)
+        {
+            keyIterator = keys.getPublishedKeys(worldName).iterator();
+        }
+        
+        // Plots which are gone
+        while (keyIterator.hasNext())
+        {
+            long key = keyIterator.next();
+            int idX = MarkerKeys.getIdX(key);
+            int idZ = MarkerKeys.getIdZ(key);
+            if (keys.getPublished(key).length > 0 && reconciler.isGhost(worldName, idX, idZ))
+            {
+                producer.removePlot(worldName, idX, idZ);
+                ++plotsRemoved;
+            }
+            if (System.nanoTime() >= deadline)
+            {
+                return true;
+            }
+        }
+        
+        // Markers which don't belong to any plot
+        if (markerSweep == null)
+        {
+            markerSweep = layer.sweep(worldName);
+        }
+        return markerSweep.step(markerId -> keys.isPublished(worldName, markerId), deadline);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Number of plots whose markers were removed
+    
+    public int getPlotsRemoved()
+    {
+        return plotsRemoved;
+    }
+    
+    // Number of markers removed which didn't belong to any plot
+    
+    public int getStrayMarkersRemoved()
+    {
+        return markerSweep != null ? markerSweep.getRemoved() : 0;
+    }
+
+}
@@ -0,0 +1,338 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.flowpowered.math.vector.Vector2d;
+
+import de.bluecolored.bluemap.api.math.Shape;
+
+// Creates the polygons for the union of a set of grid cells. Plots are always
+// axis-aligned cells on a regular grid, so this is much simpler than a general
+// polygon union. Each cell side without a neighbor is a boundary edge, and the
+// edges are traced into closed loops in time linear in the number of cells.
+//
+// Edges are directed with the inside of the region on their left, so outer
+// boundaries run counterclockwise and holes run clockwise. Where cells only
+// touch at a corner, the loops are split apart so each one is simple.
+
+public final class GridUnion
+{
+    // Edge directions, in counterclockwise order
+    private static final int[] dirX = { 1, 0, -1,  0 };
+    private static final int[] dirZ = { 0, 1,  0, -1 };
+    
+    private GridUnion()
+    {
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Create the polygons for cells packed as (x << 32) | z. Each polygon is
+    // the outline followed by the holes, scaled by the cell size.
+    
+    public static List<Shape[]> createPolygons(Vector2d cellSize, long[] cells)
+    {
+        Set<Long> cellSet = new HashSet<Long>(cells.length * 2);
+        for (long cell : cells)
+        {
+            cellSet.add(cell);
+        }
+        
+        // Find the boundary edges. Each vertex has at most two outgoing edges,
+        // stored by direction.
+        
+        Map<Long, int[]> outgoing = new HashMap<Long, int[]>(cells.length * 4);
+        int numEdges = 0;
+        for (long cell : cells)
+        {
+            int x = (int)(cell >> 32);
+            int z = (int)cell;
+            if (!cellSet.contains(pack(x, z - 1)))
+            {
+                addEdge(outgoing, x, z, 0);         // bottom, +x
+                ++numEdges;
+            }
+            if (!cellSet.contains(pack(x + 1, z)))
+            {
+                addEdge(outgoing, x + 1, z, 1);     // right, +z
+                ++numEdges;
+            }
+            if (!cellSet.contains(pack(x, z + 1)))
+            {
+                addEdge(outgoing, x + 1, z + 1, 2); // top, -x
+                ++numEdges;
+            }
+            if (!cellSet.contains(pack(x - 1, z)))
+            {
+                addEdge(outgoing, x, z + 1, 3);     // left, -z
+                ++numEdges;
+            }
+        }
+        
+        // Trace the edges into loops. If a trace comes back to a vertex it has
+        // already visited, the part since then is split off as its own loop,
+        // so every loop is a simple polygon.
+        
+        List<int[]> outlines = new ArrayList<int[]>();
+        List<int[]> holes = new ArrayList<int[]>();
+        
+        int[] loopX = new int[numEdges];
+        int[] loopZ = new int[numEdges];
+        int[] loopDir = new int[numEdges];
+        Map<Long, Integer> visited = new HashMap<Long, Integer>();
+        
+        for (Map.Entry<Long, int[]> entry : outgoing.entrySet())
+        {
+            int[] dirs = entry.getValue();
+            for (int slot = 0; slot < 2; ++slot)
+            {
+                if (dirs[slot] < 0)
+                {
+                    continue;
+                }
+                
+                // Follow the edges starting with this one
+                int x = (int)(entry.getKey() >> 32);
+                int z = (int)(long)entry.getKey();
+                int dir = dirs[slot];
+                dirs[slot] = -1;
+                int length = 0;
+                while (true)
+                {
+                    Integer start = visited.get(pack(x, z));
+                    if (start != null)
+                    {
+                        addLoop(loopX, loopZ, loopDir, start, length, visited, outlines, holes);
+                        length = start;
+                    }
+                    
+                    loopX[length] = x;
+                    loopZ[length] = z;
+                    loopDir[length] = dir;
+                    visited.put(pack(x, z), length);
+                    ++length;
+                    
+                    x += dirX[dir];
+                    z += dirZ[dir];
+                    dir = takeEdge(outgoing.get(pack(x, z)), dir);
+                    if (dir < 0)
+                    {
+                        // Back at the start
+                        addLoop(loopX, loopZ, loopDir, 0, length, visited, outlines, holes);
+                        break;
+                    }
+                }
+            }
+        }
+        
+        // Put each hole in the smallest outline containing it
+        
+        List<List<int[]>> outlineHoles = new ArrayList<List<int[]>>(outlines.size());
+        for (int i = 0; i < outlines.size(); ++i)
+        {
+            outlineHoles.add(new ArrayList<int[]>());
+        }
+        for (int[] hole : holes)
+        {
+            // The cell to the right of the hole's first corner is empty and
+            // inside the hole, so its center isn't on any boundary
+            int dx = Integer.signum(hole[2] - hole[0]);
+            int dz = Integer.signum(hole[3] - hole[1]);
+            double px = hole[0] + (dx + dz) * 0.5;
+            double pz = hole[1] + (dz - dx) * 0.5;
+            
+            int best = -1;
+            long bestArea = Long.MAX_VALUE;
+            for (int i = 0; i < outlines.size(); ++i)
+            {
+                int[] outline = outlines.get(i);
+                if (contains(outline, px, pz))
+                {
+                    long area = signedArea2(outline);
+                    if (area < bestArea)
+                    {
+                        best = i;
+                        bestArea = area;
+                    }
+                }
+            }
+            if (best >= 0)
+            {
+                outlineHoles.get(best).add(hole);
+            }
+        }
+        
+        // Convert to shapes
+        
+        List<Shape[]> polygons = new ArrayList<Shape[]>(outlines.size());
+        for (int i = 0; i < outlines.size(); ++i)
+        {
+            List<int[]> polygonHoles = outlineHoles.get(i);
+            Shape[] polygon = new Shape[polygonHoles.size() + 1];
+            polygon[0] = toShape(outlines.get(i), cellSize);
+            for (int j = 0; j < polygonHoles.size(); ++j)
+            {
+                polygon[j + 1] = toShape(polygonHoles.get(j), cellSize);
+            }
+            polygons.add(polygon);
+        }
+        return polygons;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    static long pack(int x, int z)
+    {
+        return ((long)x << 32) | (z & 0xffffffffL);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private static void addEdge(Map<Long, int[]> outgoing, int x, int z, int dir)
+    {
+        int[] dirs = outgoing.computeIfAbsent(pack(x, z), k -> new int[] { -1, -1 });
+        dirs[dirs[0] < 0 ? 0 : 1] = dir;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Add the loop of edges from start to end, keeping only the corners.
+    // Counterclockwise loops are outlines and clockwise loops are holes.
+    
+    private static void addLoop(int[] loopX, int[] loopZ, int[] loopDir, int start, int end,
+                                Map<Long, Integer> visited, List<int[]> outlines, List<int[]> holes)
+    {
+        int length = end - start;
+        int numCorners = 0;
+        for (int i = 0; i < length; ++i)
+        {
+            if (loopDir[start + i] != loopDir[start + (i + length - 1) % length])
+            {
+                ++numCorners;
+            }
+        }
+        
+        int[] corners = new int[numCorners * 2];
+        int c = 0;
+        for (int i = 0; i < length; ++i)
+        {
+            int k = start + i;
+            if (loopDir[k] != loopDir[start + (i + length - 1) % length])
+            {
+                corners[c++] = loopX[k];
+                corners[c++] = loopZ[k];
+            }
+            visited.remove(pack(loopX[k], loopZ[k]));
+        }
+        
+        if (signedArea2(corners) > 0)
+        {
+            outlines.add(corners);
+        }
+        else
+        {
+            holes.add(corners);
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Take the next edge after arriving at a vertex going in direction dir.
+    // Prefer a left turn, then straight, then a right turn. Returns -1 if
+    // there are no unused edges, which means the loop is closed.
+    
+    private static int takeEdge(int[] dirs, int dir)
+    {
+        if (dirs == null)
+        {
+            return -1;
+        }
+        int[] preference = { (dir + 1) % 4, dir, (dir + 3) % 4 };
+        for (int want : preference)
+        {
+            for (int slot = 0; slot < 2; ++slot)
+            {
+                if (dirs[slot] == want)
+                {
+                    dirs[slot] = -1;
+                    return want;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Twice the area of a polygon given as x,z pairs. Positive if
+    // counterclockwise.
+    
+    private static long signedArea2(int[] polygon)
+    {
+        int n = polygon.length / 2;
+        long area2 = 0;
+        for (int i = 0; i < n; ++i)
+        {
+            int j = (i + 1) % n;
+            area2 += (long)polygon[i*2] * polygon[j*2+1] - (long)polygon[j*2] * polygon[i*2+1];
+        }
+        return area2;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Even-odd point in polygon test
+    
+    private static boolean contains(int[] polygon, double px, double pz)
+    {
+        int n = polygon.length / 2;
+        boolean inside = false;
+        for (int i = 0, j = n - 1; i < n; j = i++)
+        {
+            double xi = polygon[i*2];
+            double zi = polygon[i*2+1];
+            double xj = polygon[j*2];
+            double zj = polygon[j*2+1];
+            if ((zi > pz) != (zj > pz) &&
+                px < (xj - xi) * (pz - zi) / (zj - zi) + xi)
+            {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private static Shape toShape(int[] polygon, Vector2d cellSize)
+    {
+        Vector2d[] points = new Vector2d[polygon.length / 2];
+        for (int i = 0; i < points.length; ++i)
+        {
+            points[i] = new Vector2d(polygon[i*2] * cellSize.getX(), polygon[i*2+1] * cellSize.getY());
+        }
+        return new Shape(points);
+    }
+
+}
@@ -0,0 +1,232 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.bluecolored.bluemap.api.AssetStorage;
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import de.bluecolored.bluemap.api.BlueMapMap;
+import de.bluecolored.bluemap.api.BlueMapWorld;
+
+// Custom icons in BlueMap's asset storage. Icons are copied off the main
+// thread, and only to maps whose copy of the icon is missing or different.
+// Each world's icon URL is looked up once and cached, since every marker
+// needs it. This is thread-safe.
+
+public final class IconAssets
+{
+    // Cached URL of a world's icon
+    
+    private static final class IconUrl
+    {
+        final String icon;
+        final String url;
+        
+        IconUrl(String icon, String url)
+        {
+            this.icon = icon;
+            this.url = url;
+        }
+    }
+    
+    private PlotMarkers plugin;
+    private volatile BlueMapAPI bmAPI = null;
+    
+    private final Map<String, IconUrl> urls = new ConcurrentHashMap<String, IconUrl>();
+    
+    // Hash of the icon last copied to each map, by map ID and icon
+    private final Map<String, byte[]> copied = new ConcurrentHashMap<String, byte[]>();
+    
+    // -------------------------------------------------------------------------
+    
+    public IconAssets(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // BlueMap was enabled or reloaded, so the maps may have changed
+    
+    public void setApi(BlueMapAPI bmAPI)
+    {
+        this.bmAPI = bmAPI;
+        urls.clear();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the URL of the custom icon for a world, or null for the default icon
+    
+    public String getIconUrl(String worldName, WorldStyle style)
+    {
+        if (!style.hasCustomIcon())
+        {
+            return null;
+        }
+        
+        IconUrl cached = urls.get(worldName);
+        if (cached != null && cached.icon.equals(style.customIcon))
+        {
+            return cached.url;
+        }
+        
+        String url = null;
+        BlueMapWorld world = bmAPI != null ? bmAPI.getWorld(worldName).orElse(null) : null;
+        if (world != null)
+        {
+            // Just grab any old map in the Collection because they should all have the same icon saved
+            Collection<BlueMapMap> maps = world.getMaps();
+            if (!maps.isEmpty())
+            {
+                url = maps.iterator().next().getAssetStorage().getAssetUrl(style.customIcon);
+            }
+        }
+        urls.put(worldName, new IconUrl(style.customIcon, url));
+        return url;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Forget a world's icon URL
+    
+    public void removeWorld(String worldName)
+    {
+        urls.remove(worldName);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Copy a world's custom icon to the asset storage of each of its maps.
+    // The maps are found here and the copy is done on another thread.
+    
+    public void copyIcons(String worldName)
+    {
+        BlueMapWorld world = bmAPI != null ? bmAPI.getWorld(worldName).orElse(null) : null;
+        String icon = plugin.config.getStyle(worldName).customIcon;
+        if (world == null || icon.isEmpty())
+        {
+            return;
+        }
+        
+        List<BlueMapMap> maps = new ArrayList<BlueMapMap>(world.getMaps());
+        Path file = plugin.getDataFolder().toPath().resolve(icon);
+        plugin.platformScheduler.runAsync(() -> copyIcon(file, icon, maps));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private void copyIcon(Path file, String icon, List<BlueMapMap> maps)
+    {
+        byte[] hash;
+        try
+        {
+            hash = hash(Files.newInputStream(file));
+        }
+        catch (IOException e)
+        {
+            plugin.getLogger().warning("IOException reading " + icon + ": " + e.getMessage());
+            return;
+        }
+        
+        for (BlueMapMap map : maps)
+        {
+            String copiedKey = map.getId() + ";" + icon;
+            AssetStorage storage = map.getAssetStorage();
+            try
+            {
+                if (isCurrent(storage, icon, hash, copied.get(copiedKey)))
+                {
+                    copied.put(copiedKey, hash);
+                    continue;
+                }
+                
+                try (OutputStream out = storage.writeAsset(icon))
+                {
+                    Files.copy(file, out);
+                }
+                copied.put(copiedKey, hash);
+                plugin.getLogger().info("Icon " + icon + " copied to " + map.getId() + " asset storage.");
+            }
+            catch (IOException e)
+            {
+                copied.remove(copiedKey);
+                plugin.getLogger().warning("IOException copying " + icon + " to " + map.getId() + " asset storage: " + e.getMessage());
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Check if the asset storage already has this icon. If it was copied
+    // earlier only its existence is checked, otherwise the stored copy is
+    // read and hashed.
+    
+    private boolean isCurrent(AssetStorage storage, String icon, byte[] hash, byte[] copiedHash) throws IOException
+    {
+        if (!storage.assetExists(icon))
+        {
+            return false;
+        }
+        if (copiedHash != null)
+        {
+            return Arrays.equals(hash, copiedHash);
+        }
+        Optional<InputStream> in = storage.readAsset(icon);
+        return in.isPresent() && Arrays.equals(hash, hash(in.get()));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Hash the contents of a stream, and close it
+    
+    private static byte[] hash(InputStream stream) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+        
+        try (DigestInputStream in = new DigestInputStream(stream, digest))
+        {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+}
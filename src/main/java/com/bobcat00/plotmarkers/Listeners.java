@@ -16,20 +16,22 @@
 
 package com.bobcat00.plotmarkers;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
 
-import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
 
 import de.bluecolored.bluemap.api.BlueMapAPI;
-import de.bluecolored.bluemap.api.BlueMapMap;
 import de.bluecolored.bluemap.api.BlueMapWorld;
-import de.bluecolored.bluemap.api.markers.MarkerSet;
 
 public final class Listeners implements Listener
 {
@@ -38,26 +40,53 @@ public final class Listeners implements Listener
     private PoiMarkers   poiMarkers;
     private ShapeMarkers shapeMarkers;
     
+    private List<MarkerProducer> producers;
+    
+    // BlueMap marker sets for each world, shared with the producers
+    private MarkerLayer poiLayer;
+    private MarkerLayer shapeLayer;
+    private PoiClusters poiClusters;
+    
+    // Number of scans still running for each world being rebuilt
+    private final Map<String, Integer> rebuilds = new HashMap<String, Integer>();
+    
     // -------------------------------------------------------------------------
     
     public Listeners(PlotMarkers plugin)
     {
         this.plugin = plugin;
         
+        int partitionSize = plugin.config.getPartitionSize();
+        if (partitionSize > 0)
+        {
+            plugin.getLogger().info("Markers are partitioned, so the Plots and Shapes layers can't be toggled in BlueMap.");
+        }
+        poiLayer = new MarkerLayer(plugin, "poimarkers", "Plots", 0, partitionSize);
+        shapeLayer = new MarkerLayer(plugin, "shapemarkers", "Shapes", 1, partitionSize);
+        poiClusters = new PoiClusters(plugin, poiLayer);
+        
         // Complicated BlueMap stuff due to the way they do the API
 
         BlueMapAPI.onEnable(api ->
         {
-            // Ensure we're on the main thread
-            Bukkit.getScheduler().runTask(plugin, new Runnable()
+            // Ensure we're on the main thread, or the global region thread on
+            // Folia
+            plugin.platformScheduler.runGlobal(new Runnable()
             {
                 @Override
                 public void run()
                 {
                     // BlueMap Worlds -> Maps -> MarkerSets - > Markers
                     bmAPI = api;
-                    ConcurrentHashMap<String, MarkerSet> poiMarkerSets = new ConcurrentHashMap<String, MarkerSet>();
-                    ConcurrentHashMap<String, MarkerSet> shapeMarkerSets = new ConcurrentHashMap<String, MarkerSet>();
+                    plugin.iconAssets.setApi(api);
+                    
+                    // Take the markers to restore before the old ones are
+                    // cleared
+                    List<MarkerCache.Entry> cached = plugin.markerCache.restore();
+                    poiLayer.clear();
+                    shapeLayer.clear();
+                    poiClusters.clear();
+                    rebuilds.clear();
                     
                     plugin.config.reloadConfig();
                     
@@ -67,59 +96,38 @@ public final class Listeners implements Listener
                     // Create BlueMap marker sets for each world in our config
                     for (String worldName : worldNames)
                     {
-                        // Get all the maps defined for this world
-                        BlueMapWorld world = api.getWorld(worldName).orElse(null);
-                        if (world != null)
+                        addWorld(worldName);
+                    }
+                    
+                    poiMarkers = new PoiMarkers(plugin, bmAPI, poiLayer);
+                    shapeMarkers = new ShapeMarkers(plugin, bmAPI, shapeLayer);
+                    
+                    producers = Arrays.asList(poiMarkers, shapeMarkers);
+                    plugin.plotEvents.setProducers(producers);
+                    plugin.reconciler.setProducers(producers);
+                    
+                    // Show the cached markers right away
+                    int restored = 0;
+                    for (MarkerCache.Entry entry : cached)
+                    {
+                        for (MarkerProducer producer : producers)
                         {
-                            // Markersets which will be used for all maps in this world
-                            MarkerSet poiMarkerSet = MarkerSet.builder()
-                                                           .label("Plots")
-                                                           .toggleable(true)
-                                                           .defaultHidden(false)
-                                                           .sorting(0)
-                                                           .build();
-                            
-                            MarkerSet shapeMarkerSet = MarkerSet.builder()
-                                                           .label("Shapes")
-                                                           .toggleable(true)
-                                                           .defaultHidden(false)
-                                                           .sorting(1)
-                                                           .build();
-     
-                            // Save for our use
-                            poiMarkerSets.put(worldName, poiMarkerSet);
-                            shapeMarkerSets.put(worldName, shapeMarkerSet);
-                            
-                            // Save in each map defined for this world
-                            for (BlueMapMap map : world.getMaps())
+                            if (entry.plotKey.startsWith(producer.getKeyPrefix()))
                             {
-                                map.getMarkerSets().put("poimarkers", poiMarkerSet);
-                                map.getMarkerSets().put("shapemarkers", shapeMarkerSet);
-                                
-                                // Copy icon to asset storage
-                                String icon = plugin.config.getCustomIcon(worldName);
-                                if (!icon.isEmpty())
-                                {
-                                    try
-                                    {
-                                        copyIcon(map, icon);
-                                    }
-                                    catch (IOException e)
-                                    {
-                                        plugin.getLogger().warning("IOException copying " + icon + " to " + map.getId() + " asset storage: " + e.getMessage());
-                                    }
-                                }
+                                producer.restore(entry);
+                                ++restored;
+                                break;
                             }
                         }
-                        else
-                        {
-                            plugin.getLogger().warning("No BlueMap definition for world " + worldName + ".");
-                            plugin.getLogger().warning("You defined a world for PlotMarkers but there is no corresponding world in BlueMap.");
-                        }
+                    }
+                    if (restored > 0)
+                    {
+                        plugin.getLogger().info("Restored markers for " + restored + " plot" + (restored == 1 ? "" : "s") + " from cache.");
                     }
                     
-                    poiMarkers = new PoiMarkers(plugin, bmAPI, poiMarkerSets);
-                    shapeMarkers = new ShapeMarkers(plugin, bmAPI, shapeMarkerSets);
+                    // Create or update the markers for all the existing plots
+                    PlotScanner scanner = new PlotScanner(plugin, producers, worldNames);
+                    scanner.start();
 
                 }
             });
@@ -128,24 +136,291 @@ public final class Listeners implements Listener
     
     // -------------------------------------------------------------------------
     
-    // Copy icon to BlueMap asset storage
+    // Create the BlueMap marker sets for a world and copy its icon. Returns
+    // false if BlueMap doesn't have the world.
+    
+    private boolean addWorld(String worldName)
+    {
+        // Get all the maps defined for this world
+        BlueMapWorld world = bmAPI.getWorld(worldName).orElse(null);
+        if (world == null)
+        {
+            plugin.getLogger().warning("No BlueMap definition for world " + worldName + ".");
+            plugin.getLogger().warning("You defined a world for PlotMarkers but there is no corresponding world in BlueMap.");
+            return false;
+        }
+        
+        // Markersets which will be used for all maps in this world
+        poiLayer.addWorld(worldName, world.getMaps());
+        shapeLayer.addWorld(worldName, world.getMaps());
+        poiClusters.addWorld(worldName, world.getMaps());
+        
+        plugin.iconAssets.copyIcons(worldName);
+        return true;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Remove the BlueMap marker sets for a world
+    
+    private void removeWorld(String worldName)
+    {
+        poiLayer.removeWorld(worldName);
+        shapeLayer.removeWorld(worldName);
+        poiClusters.removeWorld(worldName);
+        plugin.iconAssets.removeWorld(worldName);
+        rebuilds.remove(worldName);
+        
+        plugin.markerCache.removeWorld(worldName);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Rebuild the markers of some worlds from scratch, ignoring the marker
+    // cache. The new markers are published into marker sets which aren't
+    // shown yet, and once the scan is done and they've all been published,
+    // they replace the old marker sets.
     
-    private void copyIcon(BlueMapMap map, String icon) throws IOException
+    private void startRebuild(Set<String> worldNames)
     {
-        File inFile = new File(plugin.getDataFolder(), icon);
-        FileInputStream in = new FileInputStream(inFile);
-        OutputStream out = map.getAssetStorage().writeAsset(icon);
+        final Set<String> scanWorlds = new HashSet<String>(worldNames);
+        for (String worldName : scanWorlds)
+        {
+            Integer scans = rebuilds.get(worldName);
+            if (scans == null)
+            {
+                poiLayer.beginRebuild(worldName);
+                shapeLayer.beginRebuild(worldName);
+                scans = 0;
+            }
+            rebuilds.put(worldName, scans + 1);
+            plugin.markerCache.removeWorld(worldName);
+        }
         
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = in.read(buf)) > 0)
+        PlotScanner scanner = new PlotScanner(plugin, producers, scanWorlds);
+        scanner.start(() -> plugin.pipeline.runWhenIdle(() -> finishRebuild(scanWorlds)));
+    }
+    
+    // A rebuild scan is done and its markers have been published. A world is
+    // swapped in once all the scans rebuilding it are done.
+    
+    private void finishRebuild(Set<String> worldNames)
+    {
+        for (String worldName : worldNames)
         {
-            out.write(buf, 0, len);
+            Integer scans = rebuilds.get(worldName);
+            if (scans == null)
+            {
+                // Removed, or BlueMap was reloaded
+                continue;
+            }
+            if (scans > 1)
+            {
+                rebuilds.put(worldName, scans - 1);
+                continue;
+            }
+            rebuilds.remove(worldName);
+            poiLayer.commitRebuild(worldName);
+            shapeLayer.commitRebuild(worldName);
+            plugin.getLogger().info("Rebuilt markers for " + worldName + ".");
+        }
+    }
+    
+    // Whether any world is being rebuilt
+    
+    boolean isRebuilding()
+    {
+        return !rebuilds.isEmpty();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Rebuild command. Rebuilds one world, or all of them if worldName is null.
+    
+    public void rebuild(CommandSender sender, String worldName)
+    {
+        if (producers == null)
+        {
+            sender.sendMessage("BlueMap is not enabled yet.");
+            return;
+        }
+        
+        Set<String> worldNames = new HashSet<String>();
+        for (String name : plugin.config.getWorlds())
+        {
+            if (poiLayer.hasWorld(name) && (worldName == null || name.equals(worldName)))
+            {
+                worldNames.add(name);
+            }
+        }
+        if (worldNames.isEmpty())
+        {
+            sender.sendMessage("No PlotMarkers world " + worldName + " in BlueMap.");
+            return;
         }
-        out.close();
-        in.close();
         
-        plugin.getLogger().info("Icon " + icon + " copied to " + map.getId() + " asset storage.");
+        startRebuild(worldNames);
+        sender.sendMessage("Rebuilding markers for " + worldNames.size() + " world" + (worldNames.size() == 1 ? "." : "s."));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Reload the config file. Worlds which were added, or whose y settings
+    // changed, are rebuilt. Worlds which were removed have their markers
+    // removed. If only the style changed, it's applied to the existing markers
+    // without rebuilding them. A change to the date format changes all the
+    // detail text, so the other worlds are rescanned. The rescan keeps the
+    // marker cache and only updates the markers whose text changed.
+    
+    public void reload(CommandSender sender)
+    {
+        if (producers == null)
+        {
+            plugin.config.reloadConfig();
+            sender.sendMessage("PlotMarkers config reloaded. BlueMap is not enabled yet.");
+            return;
+        }
+        
+        Set<String> oldWorlds = new HashSet<String>(plugin.config.getWorlds());
+        Map<String, WorldStyle> oldStyles = new HashMap<String, WorldStyle>();
+        for (String worldName : oldWorlds)
+        {
+            oldStyles.put(worldName, plugin.config.getStyle(worldName));
+        }
+        String oldDateFormat = plugin.config.getDateFormat();
+        
+        plugin.config.reloadConfig();
+        plugin.geometryCache.setEngine(plugin.config.getShapeEngine());
+        poiClusters.configure(plugin.config.getClusterSize(), plugin.config.getClusterDistance());
+        
+        Set<String> newWorlds = plugin.config.getWorlds();
+        boolean dateFormatChanged = !oldDateFormat.equals(plugin.config.getDateFormat());
+        
+        Set<String> rebuildWorlds = new HashSet<String>();
+        Set<String> styleWorlds = new HashSet<String>();
+        Set<String> textWorlds = new HashSet<String>();
+        int removed = 0;
+        
+        for (String worldName : oldWorlds)
+        {
+            if (!newWorlds.contains(worldName))
+            {
+                removeWorld(worldName);
+                ++removed;
+            }
+        }
+        
+        for (String worldName : newWorlds)
+        {
+            WorldStyle oldStyle = oldStyles.get(worldName);
+            WorldStyle newStyle = plugin.config.getStyle(worldName);
+            if (oldStyle == null)
+            {
+                if (addWorld(worldName))
+                {
+                    rebuildWorlds.add(worldName);
+                }
+            }
+            else if (!poiLayer.hasWorld(worldName))
+            {
+                // Not in BlueMap
+                continue;
+            }
+            else
+            {
+                if (!newStyle.sameGeometry(oldStyle))
+                {
+                    rebuildWorlds.add(worldName);
+                }
+                else if (dateFormatChanged)
+                {
+                    textWorlds.add(worldName);
+                }
+                if (!newStyle.sameStyle(oldStyle))
+                {
+                    styleWorlds.add(worldName);
+                }
+            }
+        }
+        
+        // Copy any new icons before they're used
+        for (String worldName : styleWorlds)
+        {
+            if (!plugin.config.getStyle(worldName).customIcon.equals(oldStyles.get(worldName).customIcon))
+            {
+                plugin.iconAssets.copyIcons(worldName);
+            }
+        }
+        
+        if (!styleWorlds.isEmpty())
+        {
+            plugin.pipeline.stylesChanged();
+        }
+        for (MarkerProducer producer : producers)
+        {
+            producer.configReloaded(styleWorlds);
+        }
+        
+        if (!rebuildWorlds.isEmpty())
+        {
+            // The old markers are shown until the new ones are ready
+            startRebuild(rebuildWorlds);
+        }
+        
+        if (!textWorlds.isEmpty())
+        {
+            PlotScanner scanner = new PlotScanner(plugin, producers, textWorlds);
+            scanner.start();
+        }
+        
+        sender.sendMessage("PlotMarkers config reloaded. " +
+                           "Restyled: " + styleWorlds.size() + ", " +
+                           "relabeling: " + textWorlds.size() + ", " +
+                           "rebuilding: " + rebuildWorlds.size() + ", " +
+                           "removed: " + removed + " world" + (removed == 1 ? "." : "s."));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Producers and marker sets for the stats. The producers are null until
+    // BlueMap is enabled.
+    
+    PoiMarkers getPoiMarkers()
+    {
+        return poiMarkers;
+    }
+    
+    ShapeMarkers getShapeMarkers()
+    {
+        return shapeMarkers;
+    }
+    
+    MarkerLayer getPoiLayer()
+    {
+        return poiLayer;
+    }
+    
+    MarkerLayer getShapeLayer()
+    {
+        return shapeLayer;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Player quit or was kicked. Their last played date is changing, so drop
+    // them from the owner cache before the markers are updated. Their current
+    // name is saved in case they changed it.
+    
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerQuit(PlayerQuitEvent event)
+    {
+        UUID uuid = event.getPlayer().getUniqueId();
+        String name = event.getPlayer().getName();
+        plugin.platformScheduler.runOnGlobal(() ->
+        {
+            plugin.ownerNames.setName(uuid, name);
+            plugin.ownerCache.invalidate(uuid);
+        });
     }
 
 }
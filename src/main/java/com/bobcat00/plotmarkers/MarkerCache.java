@@ -0,0 +1,585 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.flowpowered.math.vector.Vector2d;
+import com.flowpowered.math.vector.Vector3d;
+
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.POIMarker;
+import de.bluecolored.bluemap.api.markers.ShapeMarker;
+import de.bluecolored.bluemap.api.math.Shape;
+
+// Keeps track of the markers built for each plot and saves them to disk, so
+// they can be shown as soon as the plugin starts. Each plot has a hash of the
+// data its markers were built from. The startup scan only rebuilds plots whose
+// hash has changed. The file is only read when BlueMap is first enabled. If
+// BlueMap is reloaded, the markers are restored from the current ones instead.
+//
+// File format (gzipped):
+//   int magic, int version, int number of entries, then for each entry:
+//   UTF plot key, long hash, UTF world, int number of markers, then for each
+//   marker: byte type, UTF id, UTF label, UTF detail, then for a POI: double x,
+//   y, z; for a shape: float y, shape, int number of holes, holes. A shape is
+//   int number of points, then double x, z for each point.
+// Styles aren't saved, the current style is applied when the markers are
+// restored.
+
+public final class MarkerCache
+{
+    private static final int magic = 0x504d4b43; // PMKC
+    private static final int version = 1;
+    
+    private static final byte typePoi = 0;
+    private static final byte typeShape = 1;
+    
+    // A marker read from the file
+    
+    public static final class CachedMarker
+    {
+        final String id;
+        final String label;
+        final String detail;
+        
+        // POI position
+        final double x;
+        final double y;
+        final double z;
+        
+        // Shape, null for a POI
+        final Shape shape;
+        final float shapeY;
+        final Shape[] holes;
+        
+        CachedMarker(String id, String label, String detail, double x, double y, double z)
+        {
+            this.id = id;
+            this.label = label;
+            this.detail = detail;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.shape = null;
+            this.shapeY = 0.0f;
+            this.holes = null;
+        }
+        
+        CachedMarker(String id, String label, String detail, Shape shape, float shapeY, Shape[] holes)
+        {
+            this.id = id;
+            this.label = label;
+            this.detail = detail;
+            this.x = 0.0;
+            this.y = 0.0;
+            this.z = 0.0;
+            this.shape = shape;
+            this.shapeY = shapeY;
+            this.holes = holes;
+        }
+    }
+    
+    // The markers for one plot
+    
+    public static final class Entry
+    {
+        final String plotKey;
+        final long hash;
+        final String worldName;
+        final List<String> markerIds;
+        
+        // Only set when the markers are being restored
+        final List<CachedMarker> markers;
+        
+        // Increases with each entry added, so a scan can tell which entries
+        // were added after it started
+        final long serial;
+        
+        Entry(String plotKey, long hash, String worldName, List<String> markerIds, List<CachedMarker> markers, long serial)
+        {
+            this.plotKey = plotKey;
+            this.hash = hash;
+            this.worldName = worldName;
+            this.markerIds = markerIds;
+            this.markers = markers;
+            this.serial = serial;
+        }
+    }
+    
+    // One scan of the plots in some worlds. Entries in those worlds which the
+    // scan doesn't find are for plots which were deleted. Only used on the
+    // main thread.
+    
+    public static final class Scan
+    {
+        private final Set<String> worldNames;
+        private final long startSerial;
+        private final Set<String> seen = new HashSet<String>();
+        
+        private Scan(Set<String> worldNames, long startSerial)
+        {
+            this.worldNames = worldNames;
+            this.startSerial = startSerial;
+        }
+        
+        // Mark a plot as found by the scan
+        
+        public void markSeen(String plotKey)
+        {
+            seen.add(plotKey);
+        }
+    }
+    
+    private PlotMarkers plugin;
+    private File file;
+    
+    // Current entries, keyed by plot key. The plot key prefix identifies the
+    // producer, e.g. "poi;".
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    
+    // Marker sets of each producer, keyed by plot key prefix then world
+    private final Map<String, MarkerLayer> layers = new HashMap<String, MarkerLayer>();
+    
+    // Serial number of the next entry. Entries are only added on the main
+    // thread.
+    private long nextSerial = 0;
+    
+    // Whether the file has been read
+    private boolean loaded = false;
+    
+    // -------------------------------------------------------------------------
+    
+    public MarkerCache(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "markers.dat");
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Register the marker sets for the plot keys with this prefix, so their
+    // markers can be saved
+    
+    public void register(String prefix, MarkerLayer layer)
+    {
+        layers.put(prefix, layer);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the hash of a plot's markers, or null if there are none
+    
+    public Long getHash(String plotKey)
+    {
+        Entry entry = entries.get(plotKey);
+        return entry != null ? entry.hash : null;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Record the markers published for a plot
+    
+    public void put(String plotKey, long hash, String worldName, Collection<String> markerIds)
+    {
+        entries.put(plotKey, new Entry(plotKey, hash, worldName, new ArrayList<String>(markerIds), null, nextSerial++));
+    }
+    
+    // Remove a plot, returning its entry or null
+    
+    public Entry remove(String plotKey)
+    {
+        return entries.remove(plotKey);
+    }
+    
+    // Remove all the plots in a world
+    
+    public void removeWorld(String worldName)
+    {
+        entries.values().removeIf(entry -> entry.worldName.equals(worldName));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Start a scan of the plots in some worlds
+    
+    public Scan startScan(Set<String> worldNames)
+    {
+        return new Scan(new HashSet<String>(worldNames), nextSerial);
+    }
+    
+    // Remove and return the entries with this prefix in the scan's worlds
+    // that weren't found by the scan. Entries added since the scan started
+    // are kept, since they're for plots created during the scan.
+    
+    public List<Entry> removeUnseen(Scan scan, String prefix)
+    {
+        List<Entry> unseen = new ArrayList<Entry>();
+        for (Entry entry : entries.values())
+        {
+            if (entry.plotKey.startsWith(prefix) && scan.worldNames.contains(entry.worldName) &&
+                entry.serial < scan.startSerial && !scan.seen.contains(entry.plotKey))
+            {
+                unseen.add(entry);
+            }
+        }
+        for (Entry entry : unseen)
+        {
+            entries.remove(entry.plotKey);
+        }
+        return unseen;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the entries to restore when BlueMap is enabled, which must be
+    // restored by their producers. The first time they're read from the file.
+    // After that they're taken from the current markers, since the file is
+    // out of date, so this must be called before the old marker sets are
+    // cleared. Must be called on the main thread.
+    
+    public List<Entry> restore()
+    {
+        if (!loaded)
+        {
+            loaded = true;
+            return load();
+        }
+        
+        List<Entry> current = new ArrayList<Entry>();
+        for (Entry entry : entries.values())
+        {
+            List<Marker> markers = getMarkers(entry);
+            if (markers != null)
+            {
+                List<CachedMarker> cached = new ArrayList<CachedMarker>(markers.size());
+                for (int i = 0; i < markers.size(); ++i)
+                {
+                    cached.add(toCached(entry.markerIds.get(i), markers.get(i)));
+                }
+                current.add(new Entry(entry.plotKey, entry.hash, entry.worldName, entry.markerIds, cached, nextSerial++));
+            }
+        }
+        
+        // Entries without all their markers are rebuilt by the scan
+        entries.clear();
+        for (Entry entry : current)
+        {
+            entries.put(entry.plotKey, entry);
+        }
+        return current;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Read the cache file. Returns the entries read, or an empty list if the
+    // file is missing or invalid.
+    
+    private List<Entry> load()
+    {
+        List<Entry> loaded = new ArrayList<Entry>();
+        entries.clear();
+        
+        if (!file.exists())
+        {
+            return loaded;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)))))
+        {
+            if (in.readInt() != magic || in.readInt() != version)
+            {
+                plugin.getLogger().warning("Ignoring " + file.getName() + ", unknown format.");
+                return loaded;
+            }
+            
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; ++i)
+            {
+                String plotKey = in.readUTF();
+                long hash = in.readLong();
+                String worldName = in.readUTF();
+                int numMarkers = in.readInt();
+                List<String> markerIds = new ArrayList<String>(numMarkers);
+                List<CachedMarker> markers = new ArrayList<CachedMarker>(numMarkers);
+                for (int j = 0; j < numMarkers; ++j)
+                {
+                    CachedMarker marker = readMarker(in);
+                    markerIds.add(marker.id);
+                    markers.add(marker);
+                }
+                Entry entry = new Entry(plotKey, hash, worldName, markerIds, markers, nextSerial++);
+                entries.put(plotKey, entry);
+                loaded.add(entry);
+            }
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            plugin.getLogger().warning("Error reading " + file.getName() + ", markers will be rebuilt: " + e.getMessage());
+            entries.clear();
+            loaded.clear();
+        }
+        
+        return loaded;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private CachedMarker readMarker(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        String id = in.readUTF();
+        String label = in.readUTF();
+        String detail = in.readUTF();
+        
+        if (type == typePoi)
+        {
+            return new CachedMarker(id, label, detail, in.readDouble(), in.readDouble(), in.readDouble());
+        }
+        else if (type == typeShape)
+        {
+            float shapeY = in.readFloat();
+            Shape shape = readShape(in);
+            Shape[] holes = new Shape[in.readInt()];
+            for (int i = 0; i < holes.length; ++i)
+            {
+                holes[i] = readShape(in);
+            }
+            return new CachedMarker(id, label, detail, shape, shapeY, holes);
+        }
+        throw new IOException("unknown marker type " + type);
+    }
+    
+    private Shape readShape(DataInputStream in) throws IOException
+    {
+        Vector2d[] points = new Vector2d[in.readInt()];
+        for (int i = 0; i < points.length; ++i)
+        {
+            points[i] = new Vector2d(in.readDouble(), in.readDouble());
+        }
+        return new Shape(points);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Write the cache file from the current markers. Must be called on the
+    // main thread.
+    
+    public void save()
+    {
+        if (layers.isEmpty())
+        {
+            // No markers were created, keep the existing file
+            return;
+        }
+        
+        File tempFile = new File(plugin.getDataFolder(), file.getName() + ".tmp");
+        int count = 0;
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile)))))
+        {
+            // Only entries whose markers all exist are written
+            List<Entry> entriesToWrite = new ArrayList<Entry>();
+            List<List<Marker>> markersToWrite = new ArrayList<List<Marker>>();
+            for (Entry entry : entries.values())
+            {
+                List<Marker> markers = getMarkers(entry);
+                if (markers != null)
+                {
+                    entriesToWrite.add(entry);
+                    markersToWrite.add(markers);
+                }
+            }
+            
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(entriesToWrite.size());
+            for (int i = 0; i < entriesToWrite.size(); ++i)
+            {
+                Entry entry = entriesToWrite.get(i);
+                out.writeUTF(entry.plotKey);
+                out.writeLong(entry.hash);
+                out.writeUTF(entry.worldName);
+                List<Marker> markers = markersToWrite.get(i);
+                out.writeInt(markers.size());
+                for (int j = 0; j < markers.size(); ++j)
+                {
+                    writeMarker(out, entry.markerIds.get(j), markers.get(j));
+                }
+            }
+            count = entriesToWrite.size();
+        }
+        catch (IOException e)
+        {
+            plugin.getLogger().warning("Error writing " + file.getName() + ": " + e.getMessage());
+            tempFile.delete();
+            return;
+        }
+        
+        try
+        {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            plugin.getLogger().warning("Error replacing " + file.getName() + ": " + e.getMessage());
+            return;
+        }
+        
+        plugin.getLogger().info("Saved markers for " + count + " plot" + (count == 1 ? "" : "s") + " to " + file.getName() + ".");
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the markers for an entry from its marker set. Returns null if any
+    // are missing or of an unknown type.
+    
+    private List<Marker> getMarkers(Entry entry)
+    {
+        int separator = entry.plotKey.indexOf(';');
+        MarkerLayer layer = layers.get(entry.plotKey.substring(0, separator + 1));
+        int[] plotId = MarkerKeys.parseId(entry.plotKey);
+        if (layer == null || plotId == null)
+        {
+            return null;
+        }
+        MarkerLayer.Partition partition = layer.findPartition(entry.worldName, plotId[0], plotId[1]);
+        if (partition == null)
+        {
+            return null;
+        }
+        
+        List<Marker> markers = new ArrayList<Marker>(entry.markerIds.size());
+        for (String id : entry.markerIds)
+        {
+            Marker marker = partition.get(id);
+            if (!(marker instanceof POIMarker) && !(marker instanceof ShapeMarker))
+            {
+                return null;
+            }
+            markers.add(marker);
+        }
+        return markers;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Copy a POI or shape marker
+    
+    private CachedMarker toCached(String id, Marker marker)
+    {
+        if (marker instanceof POIMarker)
+        {
+            POIMarker poi = (POIMarker)marker;
+            Vector3d position = poi.getPosition();
+            return new CachedMarker(id, poi.getLabel(), poi.getDetail(), position.getX(), position.getY(), position.getZ());
+        }
+        ShapeMarker shape = (ShapeMarker)marker;
+        return new CachedMarker(id, shape.getLabel(), shape.getDetail(), shape.getShape(), shape.getShapeY(),
+                                shape.getHoles().toArray(new Shape[0]));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private void writeMarker(DataOutputStream out, String id, Marker marker) throws IOException
+    {
+        if (marker instanceof POIMarker)
+        {
+            POIMarker poi = (POIMarker)marker;
+            out.writeByte(typePoi);
+            out.writeUTF(id);
+            out.writeUTF(poi.getLabel());
+            out.writeUTF(poi.getDetail());
+            Vector3d position = poi.getPosition();
+            out.writeDouble(position.getX());
+            out.writeDouble(position.getY());
+            out.writeDouble(position.getZ());
+        }
+        else
+        {
+            ShapeMarker shape = (ShapeMarker)marker;
+            out.writeByte(typeShape);
+            out.writeUTF(id);
+            out.writeUTF(shape.getLabel());
+            out.writeUTF(shape.getDetail());
+            out.writeFloat(shape.getShapeY());
+            writeShape(out, shape.getShape());
+            out.writeInt(shape.getHoles().size());
+            for (Shape hole : shape.getHoles())
+            {
+                writeShape(out, hole);
+            }
+        }
+    }
+    
+    private void writeShape(DataOutputStream out, Shape shape) throws IOException
+    {
+        out.writeInt(shape.getPointCount());
+        for (int i = 0; i < shape.getPointCount(); ++i)
+        {
+            Vector2d point = shape.getPoint(i);
+            out.writeDouble(point.getX());
+            out.writeDouble(point.getY());
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // FNV-1a hash of the data a plot's markers are built from
+    
+    static final long hashStart = 0xcbf29ce484222325L;
+    
+    static long hash(long hash, long value)
+    {
+        for (int i = 0; i < 8; ++i)
+        {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    static long hash(long hash, String value)
+    {
+        for (int i = 0; i < value.length(); ++i)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash(hash, value.length());
+    }
+
+}
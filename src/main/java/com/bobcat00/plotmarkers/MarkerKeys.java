@@ -0,0 +1,318 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keys for one producer's plots. A plot is identified by its world and plot
+// ID packed into a long:
+//   bits 48-63  world index
+//   bits 24-47  plot ID x
+//   bits  0-23  plot ID z
+// The world indexes are shared, so a plot has the same key everywhere, and
+// pack can be used without a MarkerKeys. The plot key and BlueMap marker ID
+// strings are created once per plot and reused. The IDs of the markers published for each plot are also kept here,
+// so a plot's markers can be removed without searching the marker set. This
+// is thread-safe.
+
+public final class MarkerKeys
+{
+    // Strings and published markers for one plot
+    
+    private static final class Ids
+    {
+        final String plotKey;
+        final String markerId;
+        volatile String[] published = new String[0];
+        
+        Ids(String plotKey, String markerId)
+        {
+            this.plotKey = plotKey;
+            this.markerId = markerId;
+        }
+    }
+    
+    private static final int idBits = 24;
+    private static final long idMask = (1L << idBits) - 1;
+    private static final int minId = -(1 << (idBits - 1));
+    private static final int maxId = (1 << (idBits - 1)) - 1;
+    private static final int maxWorlds = 1 << 16;
+    
+    private static final String[] none = new String[0];
+    
+    // Prefix of the plot keys used by the pipeline and marker cache
+    private final String keyPrefix;
+    
+    // Prefix of the BlueMap marker IDs
+    private final String idPrefix;
+    
+    private static final Map<String, Integer> worldIndexes = new ConcurrentHashMap<String, Integer>();
+    private static final List<String> worldNames = new ArrayList<String>();
+    
+    private final Map<Long, Ids> ids = new ConcurrentHashMap<Long, Ids>();
+    
+    // -------------------------------------------------------------------------
+    
+    public MarkerKeys(String keyPrefix, String idPrefix)
+    {
+        this.keyPrefix = keyPrefix;
+        this.idPrefix = idPrefix;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Whether a plot ID fits in 24 bits, which is about 8 million plots from
+    // the center in each direction
+    
+    public static boolean inRange(int idX, int idZ)
+    {
+        return idX >= minId && idX <= maxId && idZ >= minId && idZ <= maxId;
+    }
+    
+    // Get the key for a plot. Throws IllegalArgumentException if the plot ID
+    // is out of range, instead of returning another plot's key.
+    
+    public long key(String worldName, int idX, int idZ)
+    {
+        return pack(worldName, idX, idZ);
+    }
+    
+    // Pack a plot's world and ID into a key, for keys which don't need the
+    // strings or published markers. Throws IllegalArgumentException if the
+    // plot ID is out of range.
+    
+    public static long pack(String worldName, int idX, int idZ)
+    {
+        if (!inRange(idX, idZ))
+        {
+            throw new IllegalArgumentException("Plot ID " + idX + ";" + idZ + " is out of range for markers");
+        }
+        return pack(worldIndex(worldName), idX, idZ);
+    }
+    
+    private static long pack(int worldIndex, int idX, int idZ)
+    {
+        return ((long)worldIndex << (idBits * 2)) |
+               ((idX & idMask) << idBits) |
+               (idZ & idMask);
+    }
+    
+    // Get the key for a plot key string from the marker cache. Returns null
+    // if it doesn't have the right format or the plot ID is out of range.
+    
+    public Long key(String worldName, String plotKey)
+    {
+        int[] plotId = parseId(plotKey);
+        return plotId != null && inRange(plotId[0], plotId[1]) ? key(worldName, plotId[0], plotId[1]) : null;
+    }
+    
+    // Get the plot ID x,z from a plot key string, which ends with ;x;z.
+    // Returns null if it doesn't have that format.
+    
+    public static int[] parseId(String plotKey)
+    {
+        int end = plotKey.lastIndexOf(';');
+        int start = plotKey.lastIndexOf(';', end - 1);
+        if (start < 0)
+        {
+            return null;
+        }
+        try
+        {
+            return new int[] { Integer.parseInt(plotKey.substring(start + 1, end)),
+                               Integer.parseInt(plotKey.substring(end + 1)) };
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private static int worldIndex(String worldName)
+    {
+        Integer index = worldIndexes.get(worldName);
+        if (index != null)
+        {
+            return index;
+        }
+        synchronized (worldNames)
+        {
+            index = worldIndexes.get(worldName);
+            if (index == null)
+            {
+                if (worldNames.size() >= maxWorlds)
+                {
+                    throw new IllegalStateException("Too many worlds");
+                }
+                index = worldNames.size();
+                worldNames.add(worldName);
+                worldIndexes.put(worldName, index);
+            }
+            return index;
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Parts of a key
+    
+    public static String getWorldName(long key)
+    {
+        synchronized (worldNames)
+        {
+            return worldNames.get((int)(key >>> (idBits * 2)));
+        }
+    }
+    
+    public static int getIdX(long key)
+    {
+        // Shift left then right to sign extend
+        return (int)(key << (64 - idBits * 2) >> (64 - idBits));
+    }
+    
+    public static int getIdZ(long key)
+    {
+        return (int)(key << (64 - idBits) >> (64 - idBits));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private Ids getIds(long key)
+    {
+        return ids.computeIfAbsent(key, k ->
+        {
+            String worldName = getWorldName(k);
+            int idX = getIdX(k);
+            int idZ = getIdZ(k);
+            return new Ids(keyPrefix + worldName + ";" + idX + ";" + idZ,
+                           idPrefix + idX + ";" + idZ);
+        });
+    }
+    
+    // Plot key used by the pipeline and marker cache, e.g. poi;world;1;-2
+    
+    public String plotKey(long key)
+    {
+        return getIds(key).plotKey;
+    }
+    
+    // BlueMap marker ID, e.g. poi:1;-2. Marker sets are per world, so the
+    // world isn't included.
+    
+    public String markerId(long key)
+    {
+        return getIds(key).markerId;
+    }
+    
+    // ID of one piece of a plot's markers, e.g. one polygon of a shape. The
+    // first piece uses the plot's marker ID, so plots with one piece keep the
+    // same ID.
+    
+    public static String pieceId(String markerId, int piece)
+    {
+        return piece == 0 ? markerId : markerId + "#" + piece;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Record the IDs of the markers published for a plot. Any pieces which
+    // aren't in a later build are removed when it's published.
+    
+    public void setPublished(long key, Collection<String> markerIds)
+    {
+        getIds(key).published = markerIds.toArray(new String[markerIds.size()]);
+    }
+    
+    // Get the IDs of the markers published for a plot
+    
+    public String[] getPublished(long key)
+    {
+        Ids plotIds = ids.get(key);
+        return plotIds != null ? plotIds.published : none;
+    }
+    
+    // Whether a BlueMap marker ID is one of the published markers of a plot in
+    // a world. IDs which aren't this producer's are never published.
+    
+    public boolean isPublished(String worldName, String markerId)
+    {
+        Integer index = worldIndexes.get(worldName);
+        if (index == null || !markerId.startsWith(idPrefix))
+        {
+            return false;
+        }
+        int end = markerId.indexOf('#');
+        int[] plotId = parseId(";" + markerId.substring(idPrefix.length(), end < 0 ? markerId.length() : end));
+        if (plotId == null || !inRange(plotId[0], plotId[1]))
+        {
+            return false;
+        }
+        for (String published : getPublished(pack(index, plotId[0], plotId[1])))
+        {
+            if (published.equals(markerId))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Get the keys of the plots in a world which have published markers
+    
+    public List<Long> getPublishedKeys(String worldName)
+    {
+        List<Long> worldKeys = new ArrayList<Long>();
+        Integer index = worldIndexes.get(worldName);
+        if (index != null)
+        {
+            for (Map.Entry<Long, Ids> entry : ids.entrySet())
+            {
+                if ((entry.getKey() >>> (idBits * 2)) == index && entry.getValue().published.length > 0)
+                {
+                    worldKeys.add(entry.getKey());
+                }
+            }
+        }
+        return worldKeys;
+    }
+    
+    // Forget a plot, returning the IDs of its published markers
+    
+    public String[] remove(long key)
+    {
+        Ids plotIds = ids.remove(key);
+        return plotIds != null ? plotIds.published : none;
+    }
+    
+    // Forget all the plots in a world
+    
+    public void removeWorld(String worldName)
+    {
+        Integer index = worldIndexes.get(worldName);
+        if (index != null)
+        {
+            ids.keySet().removeIf(key -> (key >>> (idBits * 2)) == index);
+        }
+    }
+
+}
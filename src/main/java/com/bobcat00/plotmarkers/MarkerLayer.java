@@ -0,0 +1,569 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import de.bluecolored.bluemap.api.BlueMapMap;
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+
+// One layer of markers, e.g. the POI markers, in all the worlds. Normally each
+// world has a single BlueMap marker set. If a partition size is set, each
+// world is split into marker sets of partitionSize x partitionSize plots
+// instead, so a change to one plot only changes a small marker set. BlueMap
+// can't toggle a group of marker sets together, so partitions aren't listed
+// in its menu and partitioning is off by default.
+//
+// Partitions are created when a marker is first added to them. A partition
+// whose last marker is removed is queued, and a scheduler job removes it if
+// it's still empty. It isn't removed right away since the caller may be about
+// to add markers to it.
+//
+// A world can also be rebuilt from scratch. The markers are published into a
+// fresh set of partitions which aren't in the BlueMap maps yet, while the old
+// ones are still shown. When the rebuild is committed, each new marker set
+// replaces the old one with the same ID in the maps, and the old partitions
+// are dropped.
+
+public final class MarkerLayer
+{
+    // Told about each marker which is added, replaced, or removed. Called on
+    // the main thread.
+    
+    public interface ChangeListener
+    {
+        void markerChanged(String worldName, Marker oldMarker, Marker newMarker);
+        
+        // A rebuild was committed and all the world's markers were replaced
+        void worldReplaced(String worldName);
+    }
+    
+    // The marker set for one partition of a world
+    
+    public final class Partition
+    {
+        final String worldName;
+        final long partitionKey;
+        final String markerSetId;
+        final MarkerSet markerSet;
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+        
+        // Part of a rebuild which hasn't been committed, so not in the maps
+        private boolean staged;
+        
+        private Partition(String worldName, long partitionKey, String markerSetId, MarkerSet markerSet, boolean staged)
+        {
+            this.worldName = worldName;
+            this.partitionKey = partitionKey;
+            this.markerSetId = markerSetId;
+            this.markerSet = markerSet;
+            this.staged = staged;
+        }
+        
+        public void put(String id, Marker marker)
+        {
+            Marker oldMarker = markerSet.get(id);
+            markerSet.put(id, marker);
+            if (changeListener != null && !staged)
+            {
+                changeListener.markerChanged(worldName, oldMarker, marker);
+            }
+        }
+        
+        public void remove(String id)
+        {
+            Marker oldMarker = markerSet.remove(id);
+            if (oldMarker != null)
+            {
+                if (partitionSize > 0 && markerSet.getMarkers().isEmpty() && queued.compareAndSet(false, true))
+                {
+                    emptiedPartitions.add(this);
+                }
+                if (changeListener != null && !staged)
+                {
+                    changeListener.markerChanged(worldName, oldMarker, null);
+                }
+            }
+        }
+        
+        public Marker get(String id)
+        {
+            return markerSet.get(id);
+        }
+        
+        public Collection<Marker> getMarkers()
+        {
+            return markerSet.getMarkers().values();
+        }
+        
+        public int size()
+        {
+            return markerSet.getMarkers().size();
+        }
+    }
+    
+    // Removes the markers in a world which aren't wanted, a few at a time.
+    // Each partition's marker IDs are copied when the sweep gets to it. Must
+    // be used on the main thread.
+    
+    public final class Sweep
+    {
+        private final Iterator<Partition> partitionIterator;
+        private Partition partition = null;
+        private Iterator<String> markerIterator = Collections.emptyIterator();
+        private int removed = 0;
+        
+        private Sweep(Collection<Partition> partitions)
+        {
+            this.partitionIterator = new ArrayList<Partition>(partitions).iterator();
+        }
+        
+        // Check markers until the deadline, removing the ones which keep
+        // rejects. Returns true if there are more to check.
+        
+        public boolean step(Predicate<String> keep, long deadline)
+        {
+            do
+            {
+                while (!markerIterator.hasNext())
+                {
+                    if (!partitionIterator.hasNext())
+                    {
+                        return false;
+                    }
+                    partition = partitionIterator.next();
+                    markerIterator = new ArrayList<String>(partition.markerSet.getMarkers().keySet()).iterator();
+                }
+                
+                String markerId = markerIterator.next();
+                if (!keep.test(markerId) && partition.get(markerId) != null)
+                {
+                    partition.remove(markerId);
+                    ++removed;
+                }
+            }
+            while (System.nanoTime() < deadline);
+            return true;
+        }
+        
+        // Number of markers removed
+        
+        public int getRemoved()
+        {
+            return removed;
+        }
+    }
+    
+    // The partitions of one world
+    
+    private static final class World
+    {
+        final Collection<BlueMapMap> maps;
+        volatile Map<Long, Partition> partitions = new ConcurrentHashMap<Long, Partition>();
+        
+        // The partitions being rebuilt, or null if the world isn't being
+        // rebuilt
+        volatile Map<Long, Partition> staging = null;
+        
+        World(Collection<BlueMapMap> maps)
+        {
+            this.maps = maps;
+        }
+        
+        // The partitions new markers go in
+        Map<Long, Partition> target()
+        {
+            Map<Long, Partition> target = staging;
+            return target != null ? target : partitions;
+        }
+    }
+    
+    // How often the emptied partitions are checked
+    final long cleanupTicks = 200L;
+    
+    private PlotMarkers plugin;
+    
+    // BlueMap marker set ID, label, and menu order
+    private final String id;
+    private final String label;
+    private final int sorting;
+    
+    // In plots, 0 if worlds aren't partitioned
+    private final int partitionSize;
+    
+    private final Map<String, World> worlds = new ConcurrentHashMap<String, World>();
+    
+    private final ConcurrentLinkedQueue<Partition> emptiedPartitions = new ConcurrentLinkedQueue<Partition>();
+    
+    // Not told about markers dropped by removing a world
+    private ChangeListener changeListener = null;
+    
+    // -------------------------------------------------------------------------
+    
+    public MarkerLayer(PlotMarkers plugin, String id, String label, int sorting, int partitionSize)
+    {
+        this.plugin = plugin;
+        this.id = id;
+        this.label = label;
+        this.sorting = sorting;
+        this.partitionSize = Math.max(partitionSize, 0);
+        
+        plugin.scheduler.submit(this::cleanup, cleanupTicks);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    public void setChangeListener(ChangeListener changeListener)
+    {
+        this.changeListener = changeListener;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Add a world with the BlueMap maps its marker sets go in. Must be called
+    // on the main thread.
+    
+    public void addWorld(String worldName, Collection<BlueMapMap> maps)
+    {
+        removeWorld(worldName);
+        worlds.put(worldName, new World(new ArrayList<BlueMapMap>(maps)));
+        
+        if (partitionSize == 0)
+        {
+            // Always has its one marker set, even if it's empty
+            getPartition(worldName, 0, 0);
+        }
+    }
+    
+    // Remove a world and its marker sets. Must be called on the main thread.
+    
+    public void removeWorld(String worldName)
+    {
+        World world = worlds.remove(worldName);
+        if (world != null)
+        {
+            // Staged partitions aren't in the maps
+            for (Partition partition : world.partitions.values())
+            {
+                for (BlueMapMap map : world.maps)
+                {
+                    map.getMarkerSets().remove(partition.markerSetId);
+                }
+            }
+        }
+    }
+    
+    // Forget all the worlds, when BlueMap has been reloaded and the old maps
+    // are gone
+    
+    public void clear()
+    {
+        worlds.clear();
+    }
+    
+    public boolean hasWorld(String worldName)
+    {
+        return worlds.containsKey(worldName);
+    }
+    
+    public Set<String> getWorlds()
+    {
+        return Collections.unmodifiableSet(worlds.keySet());
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Start rebuilding a world. Until the rebuild is committed, markers are
+    // added to new partitions which aren't shown. Returns false if the world
+    // isn't in the layer or is already being rebuilt. Must be called on the
+    // main thread.
+    
+    public boolean beginRebuild(String worldName)
+    {
+        World world = worlds.get(worldName);
+        if (world == null || world.staging != null)
+        {
+            return false;
+        }
+        world.staging = new ConcurrentHashMap<Long, Partition>();
+        
+        if (partitionSize == 0)
+        {
+            getPartition(worldName, 0, 0);
+        }
+        return true;
+    }
+    
+    // Show the rebuilt partitions in place of the old ones. Each marker set is
+    // swapped in with a single put, so BlueMap never sees a half-built set.
+    // Must be called on the main thread.
+    
+    public void commitRebuild(String worldName)
+    {
+        World world = worlds.get(worldName);
+        if (world == null || world.staging == null)
+        {
+            return;
+        }
+        
+        Map<Long, Partition> oldPartitions = world.partitions;
+        Map<Long, Partition> newPartitions = world.staging;
+        
+        for (Partition partition : newPartitions.values())
+        {
+            if (partitionSize > 0 && partition.size() == 0)
+            {
+                // Emptied again during the rebuild
+                newPartitions.remove(partition.partitionKey);
+                continue;
+            }
+            partition.staged = false;
+            for (BlueMapMap map : world.maps)
+            {
+                map.getMarkerSets().put(partition.markerSetId, partition.markerSet);
+            }
+        }
+        
+        for (Partition partition : oldPartitions.values())
+        {
+            if (!newPartitions.containsKey(partition.partitionKey))
+            {
+                for (BlueMapMap map : world.maps)
+                {
+                    map.getMarkerSets().remove(partition.markerSetId);
+                }
+            }
+        }
+        
+        world.partitions = newPartitions;
+        world.staging = null;
+        
+        if (changeListener != null)
+        {
+            changeListener.worldReplaced(worldName);
+        }
+    }
+    
+    public boolean isRebuilding(String worldName)
+    {
+        World world = worlds.get(worldName);
+        return world != null && world.staging != null;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the partition for a plot, creating it if needed. While a world is
+    // being rebuilt, this is the new partition. Returns null if the world
+    // isn't in the layer. Must be called on the main thread.
+    
+    public Partition getPartition(String worldName, int idX, int idZ)
+    {
+        World world = worlds.get(worldName);
+        if (world == null)
+        {
+            return null;
+        }
+        
+        long partitionKey = partitionKey(idX, idZ);
+        Map<Long, Partition> target = world.target();
+        Partition partition = target.get(partitionKey);
+        if (partition == null)
+        {
+            String markerSetId = id;
+            boolean toggleable = true;
+            if (partitionSize > 0)
+            {
+                // BlueMap can't group marker sets into one entry in its menu,
+                // so partitions aren't listed there
+                markerSetId = id + "-" + (int)(partitionKey >> 32) + "_" + (int)partitionKey;
+                toggleable = false;
+            }
+            
+            MarkerSet markerSet = MarkerSet.builder()
+                                           .label(label)
+                                           .toggleable(toggleable)
+                                           .defaultHidden(false)
+                                           .sorting(sorting)
+                                           .build();
+            boolean staged = (target != world.partitions);
+            partition = new Partition(worldName, partitionKey, markerSetId, markerSet, staged);
+            target.put(partitionKey, partition);
+            
+            if (!staged)
+            {
+                for (BlueMapMap map : world.maps)
+                {
+                    map.getMarkerSets().put(markerSetId, markerSet);
+                }
+            }
+        }
+        return partition;
+    }
+    
+    // Get the partition for a plot without creating it. While a world is being
+    // rebuilt, this is the new partition. Returns null if it doesn't exist.
+    
+    public Partition findPartition(String worldName, int idX, int idZ)
+    {
+        World world = worlds.get(worldName);
+        return world != null ? world.target().get(partitionKey(idX, idZ)) : null;
+    }
+    
+    // Get all the partitions of a world, the new ones while it's being
+    // rebuilt
+    
+    public Collection<Partition> getPartitions(String worldName)
+    {
+        World world = worlds.get(worldName);
+        if (world == null)
+        {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(world.target().values());
+    }
+    
+    // Remove a plot's markers. During a rebuild they're removed from both the
+    // old and the new partitions, so a deleted plot disappears right away.
+    // Must be called on the main thread.
+    
+    public void removeMarkers(String worldName, int idX, int idZ, Collection<String> ids)
+    {
+        World world = worlds.get(worldName);
+        if (world == null)
+        {
+            return;
+        }
+        long partitionKey = partitionKey(idX, idZ);
+        
+        Partition partition = world.partitions.get(partitionKey);
+        Map<Long, Partition> staging = world.staging;
+        Partition stagedPartition = staging != null ? staging.get(partitionKey) : null;
+        for (String id : ids)
+        {
+            if (partition != null)
+            {
+                partition.remove(id);
+            }
+            if (stagedPartition != null)
+            {
+                stagedPartition.remove(id);
+            }
+        }
+    }
+    
+    // Whether all of a plot's markers are in its partition
+    
+    public boolean hasMarkers(String worldName, int idX, int idZ, String[] ids)
+    {
+        Partition partition = findPartition(worldName, idX, idZ);
+        if (partition == null)
+        {
+            return ids.length == 0;
+        }
+        for (String markerId : ids)
+        {
+            if (partition.get(markerId) == null)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Start a sweep of the markers in a world's current partitions
+    
+    public Sweep sweep(String worldName)
+    {
+        return new Sweep(getPartitions(worldName));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private long partitionKey(int idX, int idZ)
+    {
+        if (partitionSize == 0)
+        {
+            return 0L;
+        }
+        int partitionX = Math.floorDiv(idX, partitionSize);
+        int partitionZ = Math.floorDiv(idZ, partitionSize);
+        return ((long)partitionX << 32) | (partitionZ & 0xffffffffL);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Number of markers in a world
+    
+    public int getMarkerCount(String worldName)
+    {
+        int count = 0;
+        for (Partition partition : getPartitions(worldName))
+        {
+            count += partition.size();
+        }
+        return count;
+    }
+    
+    // Number of partitions in all worlds
+    
+    public int getPartitionCount()
+    {
+        int count = 0;
+        for (World world : worlds.values())
+        {
+            count += world.partitions.size();
+        }
+        return count;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Remove the partitions which were emptied, unless markers were added to
+    // them again. Scheduler job which runs once and then resubmits itself.
+    
+    private boolean cleanup()
+    {
+        Partition partition;
+        while ((partition = emptiedPartitions.poll()) != null)
+        {
+            partition.queued.set(false);
+            World world = worlds.get(partition.worldName);
+            if (world != null && partition.size() == 0 && world.partitions.get(partition.partitionKey) == partition)
+            {
+                world.partitions.remove(partition.partitionKey);
+                for (BlueMapMap map : world.maps)
+                {
+                    map.getMarkerSets().remove(partition.markerSetId);
+                }
+            }
+        }
+        
+        plugin.scheduler.submit(this::cleanup, cleanupTicks);
+        return false;
+    }
+
+}
@@ -0,0 +1,302 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import de.bluecolored.bluemap.api.markers.Marker;
+
+// Builds markers in three steps:
+//   1. A PlotSnapshot is captured on the main thread by the caller.
+//   2. The markers are built from the snapshot on a worker thread.
+//   3. The finished markers are put in the plot's MarkerLayer partition on
+//      the main thread by a WorkScheduler job, within the scheduler's per-tick
+//      budget.
+// Each submit is tagged with a generation number for its plot key. If the plot
+// is resubmitted or cancelled before its markers are published, the old
+// result is dropped instead of overwriting newer data. If the styles change
+// while markers are being built, the new style is applied to them before
+// they're published.
+
+public final class MarkerPipeline
+{
+    // Builds the markers for a plot, keyed by marker ID. Called on a worker
+    // thread, so it must only use the snapshot and thread-safe data.
+    
+    public interface Builder
+    {
+        Map<String, Marker> build(PlotSnapshot plot);
+    }
+    
+    // Applies the current style of a world to a finished marker. Called on the
+    // main thread.
+    
+    public interface Styler
+    {
+        void restyle(String worldName, Marker marker);
+    }
+    
+    // A finished build waiting to be published
+    
+    private static final class Result
+    {
+        final MarkerKeys keys;
+        final long key;
+        final String plotKey;
+        final long generation;
+        final long styleVersion;
+        final long hash;
+        final String worldName;
+        final MarkerLayer layer;
+        final Styler styler;
+        final Map<String, Marker> markers;
+        
+        Result(MarkerKeys keys, long key, String plotKey, long generation, long styleVersion, long hash, String worldName,
+               MarkerLayer layer, Styler styler, Map<String, Marker> markers)
+        {
+            this.keys = keys;
+            this.key = key;
+            this.plotKey = plotKey;
+            this.generation = generation;
+            this.styleVersion = styleVersion;
+            this.hash = hash;
+            this.worldName = worldName;
+            this.layer = layer;
+            this.styler = styler;
+            this.markers = markers;
+        }
+    }
+    
+    private PlotMarkers plugin;
+    
+    private final ExecutorService workers;
+    
+    private final ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<Result>();
+    
+    // True while a publish job is queued in the scheduler
+    private final AtomicBoolean publishScheduled = new AtomicBoolean(false);
+    
+    // Latest generation of each plot key with a build in progress. Only used
+    // on the main thread.
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+    private long nextGeneration = 0;
+    private int inFlight = 0;
+    
+    // Changed when the styles are reloaded. Only used on the main thread.
+    private long styleVersion = 0;
+    
+    // Run on the main thread when there are no builds in progress
+    private final List<Runnable> idleCallbacks = new ArrayList<Runnable>();
+    
+    // -------------------------------------------------------------------------
+    
+    public MarkerPipeline(PlotMarkers plugin, int numThreads)
+    {
+        this.plugin = plugin;
+        
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable ->
+        {
+            Thread thread = new Thread(runnable, "PlotMarkers Worker #" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        workers = Executors.newFixedThreadPool(Math.max(numThreads, 1), threadFactory);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Build markers for a plot on a worker thread. Must be called on the main
+    // thread. When the markers are published, they replace the plot's
+    // previous markers, and the hash of the plot data is recorded in the
+    // marker cache. The styler is used if the styles change before then.
+    
+    public void submit(MarkerKeys keys, long key, long hash, PlotSnapshot plot, MarkerLayer layer, Builder builder, Styler styler)
+    {
+        final String plotKey = keys.plotKey(key);
+        final long generation = ++nextGeneration;
+        final long submitStyleVersion = styleVersion;
+        generations.put(plotKey, generation);
+        ++inFlight;
+        
+        workers.execute(() ->
+        {
+            Map<String, Marker> markers = null;
+            try
+            {
+                long startTime = System.nanoTime();
+                markers = builder.build(plot);
+                plugin.stats.recordBuild(plotKey.substring(0, plotKey.indexOf(';')), System.nanoTime() - startTime, markers.size());
+            }
+            catch (RuntimeException e)
+            {
+                plugin.getLogger().log(Level.WARNING, "Exception building markers for " + plotKey, e);
+            }
+            results.add(new Result(keys, key, plotKey, generation, submitStyleVersion, hash, plot.worldName, layer, styler, markers));
+            if (publishScheduled.compareAndSet(false, true))
+            {
+                plugin.scheduler.submit(this::publish);
+            }
+        });
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Discard any build in progress for a plot, e.g. because its markers are
+    // being removed. Must be called on the main thread.
+    
+    public void cancel(String plotKey)
+    {
+        // A result with no generation is dropped when it's published
+        generations.remove(plotKey);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // The styles were reloaded. Builds already in progress may have used the
+    // old ones, so they're restyled when they're published. Must be called on
+    // the main thread.
+    
+    public void stylesChanged()
+    {
+        ++styleVersion;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Run a task on the main thread once all the builds submitted so far have
+    // been published
+    
+    public void runWhenIdle(Runnable callback)
+    {
+        if (inFlight == 0)
+        {
+            callback.run();
+        }
+        else
+        {
+            idleCallbacks.add(callback);
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Whether a build for a plot has been submitted but not published yet
+    
+    public boolean isPending(String plotKey)
+    {
+        return generations.containsKey(plotKey);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Number of builds submitted but not yet published
+    
+    public int getInFlight()
+    {
+        return inFlight;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Publish one finished build. Scheduler job run on the main thread.
+    
+    private boolean publish()
+    {
+        Result result = results.poll();
+        if (result == null)
+        {
+            // Nothing left, unless a worker added a result after the poll
+            publishScheduled.set(false);
+            if (results.isEmpty() || !publishScheduled.compareAndSet(false, true))
+            {
+                return false;
+            }
+            return true;
+        }
+        
+        --inFlight;
+        
+        Long latest = generations.get(result.plotKey);
+        if (latest != null && latest == result.generation)
+        {
+            generations.remove(result.plotKey);
+            
+            // The partition is found here since empty ones may have been
+            // removed while the markers were being built
+            MarkerLayer.Partition partition = null;
+            if (result.markers != null)
+            {
+                partition = result.layer.getPartition(result.worldName, MarkerKeys.getIdX(result.key), MarkerKeys.getIdZ(result.key));
+            }
+            
+            if (partition != null)
+            {
+                // Remove any markers the plot no longer has
+                for (String id : result.keys.getPublished(result.key))
+                {
+                    if (!result.markers.containsKey(id))
+                    {
+                        partition.remove(id);
+                    }
+                }
+                for (Map.Entry<String, Marker> entry : result.markers.entrySet())
+                {
+                    if (result.styleVersion != styleVersion)
+                    {
+                        result.styler.restyle(result.worldName, entry.getValue());
+                    }
+                    partition.put(entry.getKey(), entry.getValue());
+                }
+                result.keys.setPublished(result.key, result.markers.keySet());
+                plugin.markerCache.put(result.plotKey, result.hash, result.worldName, result.markers.keySet());
+            }
+        }
+        // Otherwise it's stale, a newer build was submitted or the plot was removed
+        
+        if (inFlight == 0 && !idleCallbacks.isEmpty())
+        {
+            List<Runnable> callbacks = new ArrayList<Runnable>(idleCallbacks);
+            idleCallbacks.clear();
+            for (Runnable callback : callbacks)
+            {
+                callback.run();
+            }
+        }
+        return true;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Stop the workers
+    
+    public void shutdown()
+    {
+        workers.shutdownNow();
+    }
+
+}
@@ -0,0 +1,82 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Set;
+
+// A layer of markers built from plots, e.g. POIs or shapes
+
+public interface MarkerProducer
+{
+    // Prefix of this producer's plot keys in the pipeline and marker cache,
+    // e.g. "poi;"
+    
+    String getKeyPrefix();
+    
+    // Called on the main thread at startup to restore the markers for a plot
+    // from the marker cache
+    
+    void restore(MarkerCache.Entry entry);
+    
+    // Called on the main thread for each plot found by a scan. Base plots
+    // include their connected plots. Plots whose markers were restored from
+    // the cache are only rebuilt if they have changed. Each plot which should
+    // have markers must be marked as seen by the scan.
+    
+    void scanPlot(PlotSnapshot plot, MarkerCache.Scan scan);
+    
+    // Called on the main thread after all plots have been scanned. Cached
+    // plots which the scan didn't see are removed.
+    
+    void scanComplete(MarkerCache.Scan scan);
+    
+    // Called on the main thread after the config is reloaded. The style of
+    // the existing markers in the given worlds must be updated.
+    
+    void configReloaded(Set<String> styleChangedWorlds);
+    
+    // Called on the main thread by PlotEvents to rebuild a plot's markers.
+    // The same snapshot is passed to every producer. Base plots include their
+    // connected plots.
+    
+    void updatePlot(PlotSnapshot plot);
+    
+    // Called on the main thread by PlotEvents when only the owner's name or
+    // dates have changed. The label and detail of the plot's existing markers
+    // are updated in place. The connected plots aren't captured. Returns false
+    // if the markers don't exist yet and the plot must be rebuilt.
+    
+    boolean refreshText(PlotSnapshot plot);
+    
+    // Called on the main thread by PlotEvents when a plot has been deleted
+    
+    void removePlot(String worldName, int idX, int idZ);
+    
+    // Called on the main thread by the Reconciler for each plot. The plot's
+    // markers are rebuilt if they're missing or out of date. Returns what was
+    // done, or PENDING if a build is in progress and the plot must be checked
+    // again later.
+    
+    Reconciler.Change reconcilePlot(PlotSnapshot plot);
+    
+    // Called on the main thread by the Reconciler after all the plots have
+    // been checked. Returns a sweep which removes the markers of plots which
+    // are gone, and markers in the world's marker sets which don't belong to
+    // any plot, or null if the world has no markers.
+    
+    GhostSweep sweepGhosts(String worldName, Reconciler reconciler);
+}
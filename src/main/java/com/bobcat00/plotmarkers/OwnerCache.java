@@ -0,0 +1,184 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+
+// Cache of plot owner info shared by the POI and shape markers. A player with
+// many plots is only looked up once instead of once per plot per marker type.
+// Names come from OwnerNames, or Bukkit if it has them. If neither knows the
+// name, a placeholder is used and OwnerNames looks it up. If PlotSquared
+// couldn't find it either, the UUID is used.
+
+public final class OwnerCache
+{
+    // Owner info used in the marker label and detail
+    
+    public static final class Owner
+    {
+        final String name;
+        final long firstPlayed;
+        final long lastPlayed;
+        
+        // False if the name is the placeholder or UUID
+        final boolean nameKnown;
+        
+        Owner(String name, long firstPlayed, long lastPlayed)
+        {
+            this(name, firstPlayed, lastPlayed, true);
+        }
+        
+        Owner(String name, long firstPlayed, long lastPlayed, boolean nameKnown)
+        {
+            this.name = name;
+            this.firstPlayed = firstPlayed;
+            this.lastPlayed = lastPlayed;
+            this.nameKnown = nameKnown;
+        }
+    }
+    
+    private final int maxSize;
+    
+    private final OwnerNames ownerNames;
+    
+    // Least recently used entries are evicted first
+    private final Map<UUID, Owner> cache;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    // -------------------------------------------------------------------------
+    
+    public OwnerCache(int maxSize, OwnerNames ownerNames)
+    {
+        this.maxSize = Math.max(maxSize, 1);
+        this.ownerNames = ownerNames;
+        
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<UUID, Owner>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Owner> eldest)
+            {
+                if (size() > OwnerCache.this.maxSize)
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the owner info, looking it up if it's not in the cache
+    
+    public Owner get(UUID uuid)
+    {
+        Owner owner = cache.get(uuid);
+        if (owner != null)
+        {
+            hits.incrementAndGet();
+            return owner;
+        }
+        misses.incrementAndGet();
+        
+        OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
+        
+        boolean nameKnown = true;
+        String playerName = ownerNames.getName(uuid);
+        if (playerName == null)
+        {
+            playerName = player.getName();
+            if (playerName != null)
+            {
+                ownerNames.setName(uuid, playerName);
+            }
+            else
+            {
+                // Shown until OwnerNames finds the name
+                playerName = ownerNames.isNotFound(uuid) ? uuid.toString() : OwnerNames.placeholder;
+                nameKnown = false;
+            }
+        }
+        
+        long firstPlayed = player.getFirstPlayed();
+        long lastPlayed = player.getLastPlayed();
+        if (lastPlayed == 0)
+        {
+            // New player, use first played date as last played date
+            lastPlayed = firstPlayed;
+        }
+        
+        owner = new Owner(playerName, firstPlayed, lastPlayed, nameKnown);
+        cache.put(uuid, owner);
+        return owner;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Remove a player from the cache, e.g. when their last played date changes
+    
+    public void invalidate(UUID uuid)
+    {
+        cache.remove(uuid);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Remove everything from the cache
+    
+    public void clear()
+    {
+        cache.clear();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Statistics
+    
+    public int size()
+    {
+        return cache.size();
+    }
+    
+    public long getHits()
+    {
+        return hits.get();
+    }
+    
+    public long getMisses()
+    {
+        return misses.get();
+    }
+    
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+}
@@ -0,0 +1,330 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.plotsquared.core.PlotSquared;
+import com.plotsquared.core.plot.Plot;
+import com.plotsquared.core.uuid.UUIDMapping;
+
+// Plot owner names. Names which aren't known yet are looked up in batches
+// through PlotSquared's UUID pipeline, off the main thread, so creating a
+// marker never waits for a name. Until then the markers use a placeholder
+// name, and their label and detail are updated when the name arrives. Owners
+// PlotSquared can't find are shown by their UUID instead. Names are saved so
+// they're known right away at the next startup.
+//
+// The file is gzipped. It has an int magic, int version, int number of names,
+// then for each name: long UUID most significant bits, long least significant
+// bits, UTF name.
+
+public final class OwnerNames
+{
+    private static final int magic = 0x504d4f4e; // PMON
+    private static final int version = 1;
+    
+    // Label used until the name is known
+    static final String placeholder = "Unknown";
+    
+    // Time between batches and the most names in a batch
+    final long batchTicks = 20L;
+    final int maxBatchSize = 100;
+    
+    private PlotMarkers plugin;
+    private final File file;
+    
+    private final Map<UUID, String> names = new ConcurrentHashMap<UUID, String>();
+    private volatile boolean changed = false;
+    
+    // Owners PlotSquared couldn't find
+    private final Set<UUID> notFound = ConcurrentHashMap.newKeySet();
+    
+    // Only used on the main thread. Owners are only requested once, so ones
+    // PlotSquared doesn't know are shown by UUID until the next startup.
+    private final Set<UUID> queued = new LinkedHashSet<UUID>();
+    private final Set<UUID> requested = new HashSet<UUID>();
+    private final Map<UUID, List<Plot>> waitingPlots = new HashMap<UUID, List<Plot>>();
+    private boolean jobScheduled = false;
+    
+    // Statistics
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong unresolved = new AtomicLong();
+    
+    // -------------------------------------------------------------------------
+    
+    public OwnerNames(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "owners.dat");
+        load();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get an owner's name, or null if it isn't known. May be called from any
+    // thread.
+    
+    public String getName(UUID uuid)
+    {
+        return names.get(uuid);
+    }
+    
+    // Whether PlotSquared couldn't find an owner's name. May be called from
+    // any thread.
+    
+    public boolean isNotFound(UUID uuid)
+    {
+        return notFound.contains(uuid);
+    }
+    
+    // Save a name which came from somewhere else, e.g. Bukkit
+    
+    public void setName(UUID uuid, String name)
+    {
+        if (!name.equals(names.put(uuid, name)))
+        {
+            changed = true;
+        }
+        notFound.remove(uuid);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // A plot's markers were captured with the placeholder name. Look up the
+    // owner's name and refresh the plot when it arrives. Must be called on the
+    // main thread.
+    
+    public void await(UUID uuid, Plot plot)
+    {
+        if (requested.contains(uuid) && !waitingPlots.containsKey(uuid))
+        {
+            // Already looked up and not found
+            return;
+        }
+        waitingPlots.computeIfAbsent(uuid, k -> new ArrayList<Plot>()).add(plot);
+        if (requested.add(uuid))
+        {
+            queued.add(uuid);
+            if (!jobScheduled)
+            {
+                jobScheduled = true;
+                plugin.scheduler.submit(this::sendBatch, batchTicks);
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Send the queued owners to PlotSquared. Scheduler job which resubmits
+    // itself until the queue is empty.
+    
+    private boolean sendBatch()
+    {
+        List<UUID> batch = new ArrayList<UUID>(Math.min(queued.size(), maxBatchSize));
+        Iterator<UUID> it = queued.iterator();
+        while (it.hasNext() && batch.size() < maxBatchSize)
+        {
+            batch.add(it.next());
+            it.remove();
+        }
+        
+        PlotSquared.get().getImpromptuUUIDPipeline().getNames(batch).whenComplete((mappings, error) ->
+        {
+            // Called on a PlotSquared thread
+            if (error != null)
+            {
+                plugin.getLogger().warning("Error looking up " + batch.size() + " owner name" + (batch.size() == 1 ? ": " : "s: ") + error.getMessage());
+            }
+            else
+            {
+                for (UUIDMapping mapping : mappings)
+                {
+                    if (mapping.username() != null && !mapping.username().isEmpty())
+                    {
+                        setName(mapping.uuid(), mapping.username());
+                    }
+                }
+            }
+            plugin.scheduler.submit(() -> batchComplete(batch));
+        });
+        
+        if (queued.isEmpty())
+        {
+            jobScheduled = false;
+        }
+        else
+        {
+            plugin.scheduler.submit(this::sendBatch, batchTicks);
+        }
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Refresh the plots of the owners in a batch, with their names or, if they
+    // weren't found, their UUIDs. Scheduler job.
+    
+    private boolean batchComplete(List<UUID> batch)
+    {
+        for (UUID uuid : batch)
+        {
+            List<Plot> plots = waitingPlots.remove(uuid);
+            if (names.containsKey(uuid))
+            {
+                resolved.incrementAndGet();
+            }
+            else
+            {
+                notFound.add(uuid);
+                unresolved.incrementAndGet();
+            }
+            plugin.ownerCache.invalidate(uuid);
+            if (plots != null)
+            {
+                for (Plot plot : plots)
+                {
+                    plugin.updateQueue.requestText(plot);
+                }
+            }
+        }
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Read the names file, if there is one
+    
+    private void load()
+    {
+        if (!file.exists())
+        {
+            return;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)))))
+        {
+            if (in.readInt() != magic || in.readInt() != version)
+            {
+                plugin.getLogger().warning("Ignoring " + file.getName() + ", unknown format.");
+                return;
+            }
+            
+            int numNames = in.readInt();
+            for (int i = 0; i < numNames; ++i)
+            {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                names.put(uuid, in.readUTF());
+            }
+        }
+        catch (IOException e)
+        {
+            plugin.getLogger().warning("Error reading " + file.getName() + ", names will be looked up again: " + e.getMessage());
+            names.clear();
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Write the names file if any names were added
+    
+    public void save()
+    {
+        if (!changed)
+        {
+            return;
+        }
+        
+        File tempFile = new File(plugin.getDataFolder(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile)))))
+        {
+            List<Map.Entry<UUID, String>> entries = new ArrayList<Map.Entry<UUID, String>>(names.entrySet());
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(entries.size());
+            for (Map.Entry<UUID, String> entry : entries)
+            {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeUTF(entry.getValue());
+            }
+        }
+        catch (IOException e)
+        {
+            plugin.getLogger().warning("Error writing " + file.getName() + ": " + e.getMessage());
+            tempFile.delete();
+            return;
+        }
+        
+        try
+        {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changed = false;
+        }
+        catch (IOException e)
+        {
+            plugin.getLogger().warning("Error replacing " + file.getName() + ": " + e.getMessage());
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Statistics
+    
+    public int size()
+    {
+        return names.size();
+    }
+    
+    public int getPending()
+    {
+        return waitingPlots.size();
+    }
+    
+    public long getResolved()
+    {
+        return resolved.get();
+    }
+    
+    public long getUnresolved()
+    {
+        return unresolved.get();
+    }
+
+}
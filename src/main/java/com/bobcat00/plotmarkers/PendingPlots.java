@@ -0,0 +1,187 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.plotsquared.core.plot.Plot;
+import com.plotsquared.core.plot.PlotId;
+
+// Plots waiting for the second half of a delete or unlink. The connected
+// plots are only available before the delete or unlink happens, so they're
+// saved here when the first event fires and taken when the post event fires.
+//
+// If the first event is cancelled there's no post event, so entries expire
+// after a while, and the oldest are dropped if there are too many. This is
+// thread-safe.
+
+public final class PendingPlots
+{
+    public enum Kind
+    {
+        DELETE,
+        UNLINK
+    }
+    
+    private static final class Entry
+    {
+        // Connected plot IDs as x,z pairs
+        final int[] plots;
+        final long expires;
+        
+        Entry(int[] plots, long expires)
+        {
+            this.plots = plots;
+            this.expires = expires;
+        }
+    }
+    
+    // A delete of a large merged plot can take a long time
+    final long expireMillis = 10 * 60 * 1000L;
+    final int maxEntries = 1000;
+    
+    private PlotMarkers plugin;
+    
+    // Entries for each kind, oldest first
+    private final Map<Kind, LinkedHashMap<Long, Entry>> entries = new LinkedHashMap<Kind, LinkedHashMap<Long, Entry>>();
+    
+    // Statistics
+    private long expired = 0;
+    private long orphaned = 0;
+    
+    // -------------------------------------------------------------------------
+    
+    public PendingPlots(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        for (Kind kind : Kind.values())
+        {
+            entries.put(kind, new LinkedHashMap<Long, Entry>());
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Save the plots connected to a plot which is about to be deleted or
+    // unlinked
+    
+    public void put(Kind kind, Plot plot)
+    {
+        if (!MarkerKeys.inRange(plot.getId().getX(), plot.getId().getY()))
+        {
+            // Never had markers
+            return;
+        }
+        
+        Set<Plot> connected = plot.getBasePlot(false).getConnectedPlots();
+        int[] plots = new int[connected.size() * 2];
+        int i = 0;
+        for (Plot connectedPlot : connected)
+        {
+            plots[i++] = connectedPlot.getId().getX();
+            plots[i++] = connectedPlot.getId().getY();
+        }
+        long key = MarkerKeys.pack(plot.getWorldName(), plot.getId().getX(), plot.getId().getY());
+        
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            expire(now);
+            
+            LinkedHashMap<Long, Entry> kindEntries = entries.get(kind);
+            kindEntries.remove(key);
+            kindEntries.put(key, new Entry(plots, now + expireMillis));
+            if (kindEntries.size() > maxEntries)
+            {
+                // Drop the oldest
+                kindEntries.remove(kindEntries.keySet().iterator().next());
+                ++expired;
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Take the connected plot IDs for a plot being deleted or unlinked, as x,z
+    // pairs. Returns null if there aren't any, e.g. because the entry expired.
+    
+    public synchronized int[] take(Kind kind, Plot plot)
+    {
+        expire(System.currentTimeMillis());
+        
+        String worldName = plot.getWorldName();
+        PlotId plotId = plot.getId();
+        if (!MarkerKeys.inRange(plotId.getX(), plotId.getY()))
+        {
+            return null;
+        }
+        Entry entry = entries.get(kind).remove(MarkerKeys.pack(worldName, plotId.getX(), plotId.getY()));
+        if (entry == null)
+        {
+            ++orphaned;
+            plugin.getLogger().warning("No pending " + kind.name().toLowerCase() + " found for " + worldName + ";" + plotId.getX() + ";" + plotId.getY());
+            return null;
+        }
+        return entry.plots;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Remove the entries which have expired. They're in expiry order since
+    // they all have the same lifetime.
+    
+    private void expire(long now)
+    {
+        for (LinkedHashMap<Long, Entry> kindEntries : entries.values())
+        {
+            Iterator<Entry> it = kindEntries.values().iterator();
+            while (it.hasNext() && it.next().expires <= now)
+            {
+                it.remove();
+                ++expired;
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Statistics
+    
+    public synchronized int getCount(Kind kind)
+    {
+        expire(System.currentTimeMillis());
+        return entries.get(kind).size();
+    }
+    
+    // Entries dropped before they were taken
+    
+    public synchronized long getExpired()
+    {
+        return expired;
+    }
+    
+    // Post events with no entry to take
+    
+    public synchronized long getOrphaned()
+    {
+        return orphaned;
+    }
+
+}
@@ -0,0 +1,175 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.lang.reflect.Method;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+// Runs tasks with the server's scheduler. Folia has no main thread and doesn't
+// support the Bukkit scheduler, so there the global region scheduler is used
+// for the plugin's main thread work and the async scheduler for background
+// work. Its API isn't in Spigot, so it's called through reflection.
+//
+// The plugin's state is only used from the thread its tasks run on, which is
+// the main thread on Bukkit and the global region thread on Folia. None of the
+// work touches blocks or entities, so nothing needs a region's thread.
+
+public final class PlatformScheduler
+{
+    // A repeating task which can be cancelled
+    
+    public interface Task
+    {
+        void cancel();
+    }
+    
+    private PlotMarkers plugin;
+    
+    private final boolean folia;
+    
+    // Folia's schedulers and their methods
+    private Object globalScheduler;
+    private Object asyncScheduler;
+    private Method globalRun;
+    private Method globalRunAtFixedRate;
+    private Method asyncRunNow;
+    private Method taskCancel;
+    
+    // -------------------------------------------------------------------------
+    
+    public PlatformScheduler(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        
+        boolean found = false;
+        try
+        {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            
+            globalScheduler = Bukkit.getServer().getClass().getMethod("getGlobalRegionScheduler").invoke(Bukkit.getServer());
+            asyncScheduler = Bukkit.getServer().getClass().getMethod("getAsyncScheduler").invoke(Bukkit.getServer());
+            
+            Class<?> globalClass = Class.forName("io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler");
+            Class<?> asyncClass = Class.forName("io.papermc.paper.threadedregions.scheduler.AsyncScheduler");
+            Class<?> taskClass = Class.forName("io.papermc.paper.threadedregions.scheduler.ScheduledTask");
+            
+            globalRun = globalClass.getMethod("run", Plugin.class, Consumer.class);
+            globalRunAtFixedRate = globalClass.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class);
+            asyncRunNow = asyncClass.getMethod("runNow", Plugin.class, Consumer.class);
+            taskCancel = taskClass.getMethod("cancel");
+            found = true;
+        }
+        catch (ClassNotFoundException e)
+        {
+            // Not Folia
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            plugin.getLogger().log(Level.WARNING, "Unable to use the Folia schedulers", e);
+        }
+        folia = found;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    public boolean isFolia()
+    {
+        return folia;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Run a task on the main thread, or the global region thread on Folia, on
+    // the next tick. May be called from any thread.
+    
+    public void runGlobal(Runnable task)
+    {
+        if (folia)
+        {
+            invoke(globalRun, globalScheduler, plugin, (Consumer<Object>) t -> task.run());
+        }
+        else
+        {
+            Bukkit.getScheduler().runTask(plugin, task);
+        }
+    }
+    
+    // Run the work of an event handler or command, which uses the plugin's
+    // state. On Bukkit they're already on the main thread, so it runs right
+    // away. On Folia they may be on a region's thread, so it's moved to the
+    // global region thread.
+    
+    public void runOnGlobal(Runnable task)
+    {
+        if (folia)
+        {
+            runGlobal(task);
+        }
+        else
+        {
+            task.run();
+        }
+    }
+    
+    // Run a task every period ticks on the main thread, or the global region
+    // thread on Folia. The delay must be at least 1 tick.
+    
+    public Task runGlobalTimer(Runnable task, long delayTicks, long periodTicks)
+    {
+        if (folia)
+        {
+            final Object scheduled = invoke(globalRunAtFixedRate, globalScheduler, plugin, (Consumer<Object>) t -> task.run(), delayTicks, periodTicks);
+            return () -> invoke(taskCancel, scheduled);
+        }
+        BukkitTask bukkitTask = Bukkit.getScheduler().runTaskTimer(plugin, task, delayTicks, periodTicks);
+        return bukkitTask::cancel;
+    }
+    
+    // Run a task on a background thread. May be called from any thread.
+    
+    public void runAsync(Runnable task)
+    {
+        if (folia)
+        {
+            invoke(asyncRunNow, asyncScheduler, plugin, (Consumer<Object>) t -> task.run());
+        }
+        else
+        {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, task);
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private Object invoke(Method method, Object target, Object... args)
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Unable to schedule task with Folia", e);
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import com.google.common.eventbus.Subscribe;
+import com.plotsquared.core.events.PlotClaimedNotifyEvent;
+import com.plotsquared.core.events.PlotDeleteEvent;
+import com.plotsquared.core.events.PlotUnlinkEvent;
+import com.plotsquared.core.events.post.PostPlotChangeOwnerEvent;
+import com.plotsquared.core.events.post.PostPlotDeleteEvent;
+import com.plotsquared.core.events.post.PostPlotMergeEvent;
+import com.plotsquared.core.events.post.PostPlotUnlinkEvent;
+import com.plotsquared.core.player.PlotPlayer;
+import com.plotsquared.core.plot.Plot;
+
+// Receives the PlotSquared events for all the marker producers. Changed plots
+// go through the update queue, and when an update is due the plot is captured
+// once and the snapshot is passed to every producer. On Folia the events are
+// on region threads, so the work is moved to the global region thread.
+
+public final class PlotEvents implements Listener
+{
+    private PlotMarkers plugin;
+    
+    // Empty until BlueMap is enabled
+    private volatile List<MarkerProducer> producers = Collections.emptyList();
+    
+    // -------------------------------------------------------------------------
+    
+    public PlotEvents(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        plugin.psAPI.registerListener(this);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    public void setProducers(List<MarkerProducer> producers)
+    {
+        this.producers = producers;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Capture a plot and pass it to every producer. Called by the update
+    // queue.
+    
+    public void update(Plot plot, boolean textOnly)
+    {
+        List<MarkerProducer> currentProducers = producers;
+        if (currentProducers.isEmpty() || !plugin.config.getWorlds().contains(plot.getWorldName()) ||
+            !PlotSnapshot.canCapture(plugin, plot))
+        {
+            return;
+        }
+        
+        if (textOnly)
+        {
+            PlotSnapshot snapshot = PlotSnapshot.capture(plugin, plot, false);
+            boolean refreshed = true;
+            for (MarkerProducer producer : currentProducers)
+            {
+                refreshed &= producer.refreshText(snapshot);
+            }
+            if (refreshed)
+            {
+                return;
+            }
+        }
+        
+        PlotSnapshot snapshot = PlotSnapshot.capture(plugin, plot);
+        for (MarkerProducer producer : currentProducers)
+        {
+            producer.updatePlot(snapshot);
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Request an update of a plot and its base plot
+    
+    private void request(Plot plot)
+    {
+        plugin.updateQueue.request(plot);
+        Plot basePlot = plot.getBasePlot(false);
+        if (!basePlot.getId().equals(plot.getId()))
+        {
+            plugin.updateQueue.request(basePlot);
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Handle /plot claim and /plot auto
+    
+    @Subscribe
+    public void onPlotClaimNotify(PlotClaimedNotifyEvent e)
+    {
+        plugin.platformScheduler.runOnGlobal(() -> request(e.getPlot()));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Handle /plot setowner
+    
+    @Subscribe
+    public void onPlotChangeOwner(PostPlotChangeOwnerEvent e)
+    {
+        plugin.platformScheduler.runOnGlobal(() -> request(e.getPlot()));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Handle /plot merge after merge has been completed. The base plot's
+    // shape replaces the shapes of the plots merged into it.
+    
+    @Subscribe
+    public void onPostPlotMerge(PostPlotMergeEvent e)
+    {
+        plugin.platformScheduler.runOnGlobal(() -> plugin.updateQueue.request(e.getPlot().getBasePlot(false)));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Handle /plot unlink in two stages. Each of the plots which were
+    // connected is rebuilt on its own. The connected plots are saved right
+    // away, before the unlink happens.
+    
+    @Subscribe
+    public void onPlotUnlink(PlotUnlinkEvent e)
+    {
+        plugin.pendingPlots.put(PendingPlots.Kind.UNLINK, e.getPlot());
+    }
+    
+    @Subscribe
+    public void onPostPlotUnlink(PostPlotUnlinkEvent e)
+    {
+        plugin.platformScheduler.runOnGlobal(() -> postUnlink(e.getPlot()));
+    }
+    
+    private void postUnlink(Plot unlinked)
+    {
+        String worldName = unlinked.getWorldName();
+        int[] plotIds = plugin.pendingPlots.take(PendingPlots.Kind.UNLINK, unlinked);
+        if (plotIds != null)
+        {
+            for (int i = 0; i < plotIds.length; i += 2)
+            {
+                Plot plot = Plot.getPlotFromString(null, worldName + ";" + plotIds[i] + ";" + plotIds[i+1], false);
+                if (plot != null)
+                {
+                    plugin.updateQueue.request(plot);
+                }
+                else
+                {
+                    plugin.getLogger().warning("No plot found for pending unlink " + worldName + ";" + plotIds[i] + ";" + plotIds[i+1]);
+                }
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Handle /plot delete in two stages. The markers of all the plots which
+    // were connected are removed. The connected plots are saved right away,
+    // before the delete happens.
+    
+    @Subscribe
+    public void onPlotDelete(PlotDeleteEvent e)
+    {
+        plugin.pendingPlots.put(PendingPlots.Kind.DELETE, e.getPlot());
+    }
+    
+    @Subscribe
+    public void onPostPlotDelete(PostPlotDeleteEvent e)
+    {
+        plugin.platformScheduler.runOnGlobal(() -> postDelete(e.getPlot()));
+    }
+    
+    private void postDelete(Plot deleted)
+    {
+        String worldName = deleted.getWorldName();
+        int[] plotIds = plugin.pendingPlots.take(PendingPlots.Kind.DELETE, deleted);
+        if (plotIds != null)
+        {
+            for (int i = 0; i < plotIds.length; i += 2)
+            {
+                plugin.updateQueue.cancel(worldName, plotIds[i], plotIds[i+1]);
+                for (MarkerProducer producer : producers)
+                {
+                    producer.removePlot(worldName, plotIds[i], plotIds[i+1]);
+                }
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Player quit or was kicked. Only the last played date of their plots
+    // changes. The update queue gives the player time to logout.
+    
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event)
+    {
+        UUID uuid = event.getPlayer().getUniqueId();
+        plugin.platformScheduler.runOnGlobal(() ->
+        {
+            PlotPlayer<?> plotPlayer = plugin.psAPI.wrapPlayer(uuid);
+            for (Plot plot : plotPlayer.getPlots())
+            {
+                plugin.updateQueue.requestText(plot);
+            }
+        });
+    }
+
+}
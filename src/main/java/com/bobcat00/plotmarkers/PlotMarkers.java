@@ -26,6 +26,20 @@ public final class PlotMarkers extends JavaPlugin {
     
     Config config;
     PlotAPI psAPI;
+    PlatformScheduler platformScheduler;
+    OwnerNames ownerNames;
+    OwnerCache ownerCache;
+    WorkScheduler scheduler;
+    MarkerPipeline pipeline;
+    UpdateQueue updateQueue;
+    MarkerCache markerCache;
+    GeometryCache geometryCache;
+    PendingPlots pendingPlots;
+    PlotEvents plotEvents;
+    IconAssets iconAssets;
+    Reconciler reconciler;
+    Stats stats;
+    Listeners listeners;
     
     @Override
     public void onEnable()
@@ -34,18 +48,64 @@ public final class PlotMarkers extends JavaPlugin {
         
         config = new Config(this);
         
-        getServer().getPluginManager().registerEvents(new Listeners(this), this);
+        ownerNames = new OwnerNames(this);
+        ownerCache = new OwnerCache(config.getOwnerCacheSize(), ownerNames);
         
-        // Metrics
+        platformScheduler = new PlatformScheduler(this);
+        scheduler = new WorkScheduler(this);
+        pipeline = new MarkerPipeline(this, config.getWorkerThreads());
+        updateQueue = new UpdateQueue(this);
+        markerCache = new MarkerCache(this);
+        geometryCache = new GeometryCache(1024, config.getShapeEngine());
+        pendingPlots = new PendingPlots(this);
+        plotEvents = new PlotEvents(this);
+        iconAssets = new IconAssets(this);
+        reconciler = new Reconciler(this);
         
-        int pluginId = 20792;
-        Metrics metrics = new Metrics(this, pluginId);
-        metrics.addCustomChart(new SimplePie("worlds", () -> String.valueOf(config.getWorlds().size())));
-        getLogger().info("Metrics enabled if allowed by plugins/bStats/config.yml");
+        stats = new Stats(this);
+        stats.register();
+        
+        listeners = new Listeners(this);
+        getServer().getPluginManager().registerEvents(listeners, this);
+        
+        Commands commands = new Commands(this);
+        getCommand("plotmarkers").setExecutor(commands);
+        getCommand("plotmarkers").setTabCompleter(commands);
+        
+        // Metrics. bStats uses the Bukkit scheduler, which Folia doesn't
+        // support.
+        
+        if (!platformScheduler.isFolia())
+        {
+            int pluginId = 20792;
+            Metrics metrics = new Metrics(this, pluginId);
+            metrics.addCustomChart(new SimplePie("worlds", () -> String.valueOf(config.getWorlds().size())));
+            getLogger().info("Metrics enabled if allowed by plugins/bStats/config.yml");
+        }
     }
     
     @Override
     public void onDisable()
     {
+        if (stats != null)
+        {
+            stats.unregister();
+        }
+        if (markerCache != null)
+        {
+            markerCache.save();
+        }
+        if (ownerNames != null)
+        {
+            ownerNames.save();
+        }
+        if (pipeline != null)
+        {
+            pipeline.shutdown();
+        }
+        if (scheduler != null)
+        {
+            scheduler.shutdown();
+        }
     }
 }
@@ -0,0 +1,106 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+
+import com.plotsquared.core.plot.Plot;
+
+// Walks all the PlotSquared plots and hands each one to every
+// marker producer. Each plot is captured once, so isBasePlot and the connected
+// plots are only computed once per plot.
+
+public final class PlotScanner
+{
+    private PlotMarkers plugin;
+    private List<MarkerProducer> producers;
+    
+    // Only scan plots in these worlds
+    private Set<String> worldNames;
+    
+    // -------------------------------------------------------------------------
+    
+    public PlotScanner(PlotMarkers plugin, List<MarkerProducer> producers, Set<String> worldNames)
+    {
+        this.plugin = plugin;
+        this.producers = producers;
+        this.worldNames = worldNames;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Start the scan. It runs in pieces in the scheduler.
+    
+    public void start()
+    {
+        start(null);
+    }
+    
+    // Start the scan, and run whenDone on the main thread after the producers
+    // have been told it's complete
+    
+    public void start(Runnable whenDone)
+    {
+        // Get all the PlotSquared plots
+        final Iterator<Plot> plotIterator = plugin.psAPI.getAllPlots().iterator();
+        final MarkerCache.Scan scan = plugin.markerCache.startScan(worldNames);
+        
+        plugin.scheduler.submit(() ->
+        {
+            if (plotIterator.hasNext())
+            {
+                // The list of plots may be out of date, so skip plots which
+                // were deleted since the scan started
+                Plot plot = plotIterator.next();
+                if (worldNames.contains(plot.getWorldName()) && plot.hasOwner() && PlotSnapshot.canCapture(plugin, plot))
+                {
+                    // A problem with one plot shouldn't stop the scan, or it
+                    // would never be completed
+                    try
+                    {
+                        PlotSnapshot snapshot = PlotSnapshot.capture(plugin, plot);
+                        for (MarkerProducer producer : producers)
+                        {
+                            producer.scanPlot(snapshot, scan);
+                        }
+                    }
+                    catch (RuntimeException e)
+                    {
+                        plugin.getLogger().log(Level.WARNING, "Exception scanning plot " + plot.getWorldName() + ";" +
+                                               plot.getId().getX() + ";" + plot.getId().getY(), e);
+                    }
+                }
+                return true;
+            }
+            
+            // All done
+            for (MarkerProducer producer : producers)
+            {
+                producer.scanComplete(scan);
+            }
+            if (whenDone != null)
+            {
+                whenDone.run();
+            }
+            return false;
+        });
+    }
+
+}
@@ -0,0 +1,156 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Set;
+import java.util.UUID;
+
+import com.plotsquared.core.location.Location;
+import com.plotsquared.core.plot.Plot;
+import com.plotsquared.core.plot.PlotId;
+
+// Immutable copy of the plot data needed to build markers. This is captured
+// on the main thread so the markers can be built on a worker thread without
+// touching PlotSquared or Bukkit.
+
+public final class PlotSnapshot
+{
+    final String worldName;
+    final int idX;
+    final int idZ;
+    
+    // Absolute corners of the plot
+    final int bottomX;
+    final int bottomY;
+    final int bottomZ;
+    final int topX;
+    final int topY;
+    final int topZ;
+    
+    final UUID owner;
+    final OwnerCache.Owner ownerInfo;
+    
+    final boolean basePlot;
+    
+    // IDs of the connected plots as x,z pairs, including this plot. Empty if
+    // not captured.
+    final int[] connected;
+    
+    // -------------------------------------------------------------------------
+    
+    private PlotSnapshot(Plot plot, Location bottom, Location top, OwnerCache.Owner ownerInfo, boolean basePlot, int[] connected)
+    {
+        this(plot.getWorldName(), plot.getId().getX(), plot.getId().getY(),
+             bottom.getX(), bottom.getY(), bottom.getZ(),
+             top.getX(), top.getY(), top.getZ(),
+             plot.getOwnerAbs(), ownerInfo, basePlot, connected);
+    }
+    
+    // Snapshot of a plot which doesn't come from PlotSquared, for the
+    // benchmarks
+    
+    PlotSnapshot(String worldName, int idX, int idZ,
+                 int bottomX, int bottomY, int bottomZ,
+                 int topX, int topY, int topZ,
+                 UUID owner, OwnerCache.Owner ownerInfo, boolean basePlot, int[] connected)
+    {
+        this.worldName = worldName;
+        this.idX = idX;
+        this.idZ = idZ;
+        this.bottomX = bottomX;
+        this.bottomY = bottomY;
+        this.bottomZ = bottomZ;
+        this.topX = topX;
+        this.topY = topY;
+        this.topZ = topZ;
+        this.owner = owner;
+        this.ownerInfo = ownerInfo;
+        this.basePlot = basePlot;
+        this.connected = connected;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Whether a plot can have markers. Plot IDs which don't fit in a marker
+    // key are logged and skipped.
+    
+    static boolean canCapture(PlotMarkers plugin, Plot plot)
+    {
+        PlotId plotId = plot.getId();
+        if (MarkerKeys.inRange(plotId.getX(), plotId.getY()))
+        {
+            return true;
+        }
+        plugin.getLogger().warning("Plot " + plot.getWorldName() + ";" + plotId.getX() + ";" + plotId.getY() + " is too far from the center for markers.");
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Capture a plot. Must be called on the main thread. The connected plots
+    // are only captured if requested.
+    
+    static PlotSnapshot capture(PlotMarkers plugin, Plot plot, boolean withConnected)
+    {
+        return capture(plugin, plot, plot.isBasePlot(), withConnected);
+    }
+    
+    // Capture a plot, including the connected plots if it's a base plot
+    
+    static PlotSnapshot capture(PlotMarkers plugin, Plot plot)
+    {
+        boolean basePlot = plot.isBasePlot();
+        return capture(plugin, plot, basePlot, basePlot);
+    }
+    
+    private static PlotSnapshot capture(PlotMarkers plugin, Plot plot, boolean basePlot, boolean withConnected)
+    {
+        int[] connected = new int[0];
+        if (withConnected)
+        {
+            Set<Plot> plots = plot.getConnectedPlots();
+            connected = new int[plots.size() * 2];
+            int i = 0;
+            for (Plot connectedPlot : plots)
+            {
+                connected[i++] = connectedPlot.getId().getX();
+                connected[i++] = connectedPlot.getId().getY();
+            }
+        }
+        
+        // Bukkit's offline player lookup isn't guaranteed to be thread-safe,
+        // so the owner info is captured here too
+        OwnerCache.Owner ownerInfo = plugin.ownerCache.get(plot.getOwnerAbs());
+        if (!ownerInfo.nameKnown)
+        {
+            // Refresh the plot when the name is found
+            plugin.ownerNames.await(plot.getOwnerAbs(), plot);
+        }
+        
+        return new PlotSnapshot(plot, plot.getBottomAbs(), plot.getTopAbs(), ownerInfo, basePlot, connected);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Number of connected plots captured
+    
+    int getConnectedCount()
+    {
+        return connected.length / 2;
+    }
+
+}
@@ -0,0 +1,305 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.flowpowered.math.vector.Vector3d;
+
+import de.bluecolored.bluemap.api.BlueMapMap;
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.POIMarker;
+
+// Level of detail for the POI markers. Each world is divided into square cells
+// of clusterSize blocks, and each cell with plots gets one marker showing the
+// number of plots in it. The clusters are shown when the camera is further
+// away than clusterDistance, and the plot markers are shown when it's closer.
+//
+// The number of plots in each cell is kept up to date as the POI markers are
+// added and removed, and only the cells which changed have their markers
+// updated.
+
+public final class PoiClusters implements MarkerLayer.ChangeListener
+{
+    // Plots in one cell. The cluster marker is placed at their average
+    // position.
+    
+    private static final class Cell
+    {
+        int count = 0;
+        double sumX = 0.0;
+        double sumY = 0.0;
+        double sumZ = 0.0;
+    }
+    
+    private static final class World
+    {
+        final Collection<BlueMapMap> maps;
+        final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+        final Set<Long> dirtyCells = new HashSet<Long>();
+        
+        World(Collection<BlueMapMap> maps)
+        {
+            this.maps = maps;
+        }
+    }
+    
+    // How often the cluster markers are updated
+    final long updateTicks = 20L;
+    
+    private PlotMarkers plugin;
+    private MarkerLayer poiLayer;
+    
+    // BlueMap marker sets for the cluster markers
+    private MarkerLayer clusterLayer;
+    
+    // In blocks, clusterSize is 0 if clustering is off
+    private int clusterSize = 0;
+    private double clusterDistance = 0.0;
+    
+    // Only used on the main thread
+    private final Map<String, World> worlds = new HashMap<String, World>();
+    
+    // -------------------------------------------------------------------------
+    
+    public PoiClusters(PlotMarkers plugin, MarkerLayer poiLayer)
+    {
+        this.plugin = plugin;
+        this.poiLayer = poiLayer;
+        
+        clusterLayer = new MarkerLayer(plugin, "plotclusters", "Plot Clusters", 2, 0);
+        poiLayer.setChangeListener(this);
+        
+        configure(plugin.config.getClusterSize(), plugin.config.getClusterDistance());
+        
+        plugin.scheduler.submit(this::update, updateTicks);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Set the cell size and distance. If the cell size changed, the cells are
+    // counted again from the existing POI markers.
+    
+    public void configure(int clusterSize, double clusterDistance)
+    {
+        if (clusterSize != this.clusterSize)
+        {
+            this.clusterSize = clusterSize;
+            this.clusterDistance = clusterDistance;
+            for (Map.Entry<String, World> entry : worlds.entrySet())
+            {
+                resetWorld(entry.getKey(), entry.getValue());
+            }
+        }
+        else if (clusterDistance != this.clusterDistance)
+        {
+            this.clusterDistance = clusterDistance;
+            for (World world : worlds.values())
+            {
+                world.dirtyCells.addAll(world.cells.keySet());
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Add a world with the BlueMap maps its cluster markers go in. It's
+    // counted from any POI markers it already has.
+    
+    public void addWorld(String worldName, Collection<BlueMapMap> maps)
+    {
+        World world = new World(new ArrayList<BlueMapMap>(maps));
+        worlds.put(worldName, world);
+        resetWorld(worldName, world);
+    }
+    
+    public void removeWorld(String worldName)
+    {
+        worlds.remove(worldName);
+        clusterLayer.removeWorld(worldName);
+    }
+    
+    // Forget all the worlds, when BlueMap has been reloaded
+    
+    public void clear()
+    {
+        worlds.clear();
+        clusterLayer.clear();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Start a world over with the current cell size
+    
+    private void resetWorld(String worldName, World world)
+    {
+        world.cells.clear();
+        world.dirtyCells.clear();
+        clusterLayer.removeWorld(worldName);
+        
+        if (clusterSize > 0)
+        {
+            clusterLayer.addWorld(worldName, world.maps);
+            for (MarkerLayer.Partition partition : poiLayer.getPartitions(worldName))
+            {
+                for (Marker marker : partition.getMarkers())
+                {
+                    count(world, marker, 1);
+                }
+            }
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // A POI marker was added, replaced, or removed
+    
+    @Override
+    public void markerChanged(String worldName, Marker oldMarker, Marker newMarker)
+    {
+        World world = worlds.get(worldName);
+        if (clusterSize == 0 || world == null)
+        {
+            return;
+        }
+        if (oldMarker != null)
+        {
+            count(world, oldMarker, -1);
+        }
+        if (newMarker != null)
+        {
+            count(world, newMarker, 1);
+        }
+    }
+    
+    // A rebuild of the POI markers was committed, so count the world again.
+    // The old cells are marked dirty so their markers are updated or removed.
+    
+    @Override
+    public void worldReplaced(String worldName)
+    {
+        World world = worlds.get(worldName);
+        if (clusterSize == 0 || world == null)
+        {
+            return;
+        }
+        Set<Long> oldCells = new HashSet<Long>(world.cells.keySet());
+        world.cells.clear();
+        for (MarkerLayer.Partition partition : poiLayer.getPartitions(worldName))
+        {
+            for (Marker marker : partition.getMarkers())
+            {
+                count(world, marker, 1);
+            }
+        }
+        world.dirtyCells.addAll(oldCells);
+    }
+    
+    // Add or remove a marker from its cell's count
+    
+    private void count(World world, Marker marker, int delta)
+    {
+        Vector3d position = marker.getPosition();
+        long cellKey = GridUnion.pack(Math.floorDiv((int)Math.floor(position.getX()), clusterSize),
+                                      Math.floorDiv((int)Math.floor(position.getZ()), clusterSize));
+        
+        Cell cell = world.cells.computeIfAbsent(cellKey, k -> new Cell());
+        cell.count += delta;
+        cell.sumX += delta * position.getX();
+        cell.sumY += delta * position.getY();
+        cell.sumZ += delta * position.getZ();
+        if (cell.count <= 0)
+        {
+            world.cells.remove(cellKey);
+        }
+        world.dirtyCells.add(cellKey);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Update the markers of the cells which changed. Scheduler job which runs
+    // once and then resubmits itself.
+    
+    private boolean update()
+    {
+        for (Map.Entry<String, World> entry : worlds.entrySet())
+        {
+            World world = entry.getValue();
+            if (world.dirtyCells.isEmpty())
+            {
+                continue;
+            }
+            
+            MarkerLayer.Partition partition = clusterLayer.getPartition(entry.getKey(), 0, 0);
+            if (partition != null)
+            {
+                for (long cellKey : world.dirtyCells)
+                {
+                    updateMarker(partition, cellKey, world.cells.get(cellKey));
+                }
+            }
+            world.dirtyCells.clear();
+        }
+        
+        plugin.scheduler.submit(this::update, updateTicks);
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private void updateMarker(MarkerLayer.Partition partition, long cellKey, Cell cell)
+    {
+        String markerId = "cluster:" + (int)(cellKey >> 32) + ";" + (int)cellKey;
+        if (cell == null)
+        {
+            partition.remove(markerId);
+            return;
+        }
+        
+        double x = cell.sumX / cell.count;
+        double y = cell.sumY / cell.count;
+        double z = cell.sumZ / cell.count;
+        String label = cell.count + (cell.count == 1 ? " plot" : " plots");
+        
+        Marker existing = partition.get(markerId);
+        if (existing instanceof POIMarker)
+        {
+            // Change it in place
+            POIMarker marker = (POIMarker)existing;
+            marker.setPosition(x, y, z);
+            marker.setLabel(label);
+            marker.setDetail(label);
+            marker.setMinDistance(clusterDistance);
+        }
+        else
+        {
+            POIMarker marker = POIMarker.builder()
+                                        .position(x, y, z)
+                                        .label(label)
+                                        .detail(label)
+                                        .minDistance(clusterDistance)
+                                        .build();
+            partition.put(markerId, marker);
+        }
+    }
+
+}
@@ -16,319 +16,421 @@
 
 package com.bobcat00.plotmarkers;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.GregorianCalendar;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
-import org.bukkit.entity.Player;
-import org.bukkit.event.EventHandler;
-import org.bukkit.event.Listener;
-import org.bukkit.event.player.PlayerQuitEvent;
-
-import com.google.common.eventbus.Subscribe;
-import com.plotsquared.core.events.PlotClaimedNotifyEvent;
-import com.plotsquared.core.events.PlotDeleteEvent;
-import com.plotsquared.core.events.post.PostPlotChangeOwnerEvent;
-import com.plotsquared.core.events.post.PostPlotDeleteEvent;
-import com.plotsquared.core.location.Location;
-import com.plotsquared.core.player.PlotPlayer;
-import com.plotsquared.core.plot.Plot;
-import com.plotsquared.core.plot.PlotId;
 
 import de.bluecolored.bluemap.api.BlueMapAPI;
-import de.bluecolored.bluemap.api.BlueMapMap;
-import de.bluecolored.bluemap.api.BlueMapWorld;
-import de.bluecolored.bluemap.api.markers.MarkerSet;
+import de.bluecolored.bluemap.api.markers.Marker;
 import de.bluecolored.bluemap.api.markers.POIMarker;
 
-public final class PoiMarkers implements Listener
+public final class PoiMarkers implements MarkerProducer
 {
     private PlotMarkers plugin;
     private BlueMapAPI bmAPI;
     
-    // Maximum runtime of task creating/updating markers
-    final long maxTaskTime = 10; // msec
-    
     // Only output markers in these worlds
     private Set<String> worldNames;
     
-    // BlueMap marker set
-    private ConcurrentHashMap<String, MarkerSet> markerSets;
+    // BlueMap marker sets
+    private MarkerLayer layer;
+    
+    // Prefix of the plot keys
+    static final String keyPrefix = "poi;";
+    
+    // Plot keys and marker IDs
+    private final MarkerKeys keys = new MarkerKeys(keyPrefix, "poi:");
     
-    // Map to handle passing data between events
-    private Map<String, List<PlotId>> pendingDelete = Collections.synchronizedMap(new HashMap<String, List<PlotId>>());
+    // BlueMap's default POI icon
+    final String defaultIcon = "assets/poi.svg";
+    final int defaultIconAnchorX = 25;
+    final int defaultIconAnchorY = 45;
+    
+    // BlueMap's default maximum distance
+    final double defaultMaxDistance = 10000000.0;
     
     // -------------------------------------------------------------------------
     
-    public PoiMarkers(PlotMarkers plugin, BlueMapAPI bmAPI, ConcurrentHashMap<String, MarkerSet> markerSets)
+    public PoiMarkers(PlotMarkers plugin, BlueMapAPI bmAPI, MarkerLayer layer)
     {
         this.plugin = plugin;
         this.bmAPI = bmAPI;
-        this.markerSets = markerSets;
-        
-        plugin.getServer().getPluginManager().registerEvents(this, plugin);
-        plugin.psAPI.registerListener(this);
+        this.layer = layer;
         
         // Get list of worlds from config file
         worldNames = plugin.config.getWorlds();
         
-        // Get all the PlotSquared plots
-        final Set<Plot> plots = plugin.psAPI.getAllPlots();
-        final Iterator<Plot> plotIterator = plots.iterator();
-        
-        // Break this up into pieces
-        Bukkit.getScheduler().runTaskTimer(plugin, task ->
-        {
-            long startTime = System.currentTimeMillis();
-            
-            // Create a marker for each plot
-            while (plotIterator.hasNext())
-            {
-                createMarker(plotIterator.next());
-                if (System.currentTimeMillis() - startTime > maxTaskTime)
-                {
-                    return;
-                }
-            }
-            
-            // All done
-            task.cancel();
-            
-            for (String worldName : worldNames)
-            {
-                MarkerSet markerSet = markerSets.get(worldName);
-                if (markerSet != null)
-                {
-                    int numMarkers = markerSet.getMarkers().size();
-                    plugin.getLogger().info("Created " + numMarkers + " POI marker" + (numMarkers == 1 ? " for " : "s for ") + worldName + ".");
-                }
-            }
-        }, 0L, 1L); // delay 0, period 1
+        plugin.markerCache.register(keyPrefix, layer);
     }
     
     // -------------------------------------------------------------------------
     
-    // Handle /plot claim and /plot auto
-    
-    @Subscribe
-    public void onPlotClaimNotify(PlotClaimedNotifyEvent e)
+    @Override
+    public String getKeyPrefix()
     {
-        createMarker(e.getPlot());
+        return keyPrefix;
     }
     
     // -------------------------------------------------------------------------
     
-    // Handle /plot setowner
+    // Restore a plot's marker from the marker cache
     
-    @Subscribe
-    public void onPlotChangeOwner(PostPlotChangeOwnerEvent e)
+    @Override
+    public void restore(MarkerCache.Entry entry)
     {
-        createMarker(e.getPlot());
+        Long key = keys.key(entry.worldName, entry.plotKey);
+        if (key == null || !layer.hasWorld(entry.worldName) || !worldNames.contains(entry.worldName))
+        {
+            // World no longer used
+            plugin.markerCache.remove(entry.plotKey);
+            return;
+        }
+        MarkerLayer.Partition partition = layer.getPartition(entry.worldName, MarkerKeys.getIdX(key), MarkerKeys.getIdZ(key));
+        
+        WorldStyle style = plugin.config.getStyle(entry.worldName);
+        String iconUrl = plugin.iconAssets.getIconUrl(entry.worldName, style);
+        
+        for (MarkerCache.CachedMarker cached : entry.markers)
+        {
+            POIMarker marker = POIMarker.builder()
+                                        .position(cached.x, cached.y, cached.z)
+                                        .label(cached.label)
+                                        .detail(cached.detail)
+                                        .build();
+            if (iconUrl != null)
+            {
+                marker.setIcon(iconUrl, style.customIconAnchorX, style.customIconAnchorY);
+            }
+            if (style.poiMaxDistance > 0.0)
+            {
+                marker.setMaxDistance(style.poiMaxDistance);
+            }
+            partition.put(cached.id, marker);
+        }
+        
+        keys.setPublished(key, entry.markerIds);
     }
     
     // -------------------------------------------------------------------------
     
-    // Handle /plot delete
+    // Startup scan, create a marker for each plot
     
-    @Subscribe
-    public void onPlotDelete(PlotDeleteEvent e)
+    @Override
+    public void scanPlot(PlotSnapshot plot, MarkerCache.Scan scan)
     {
-        // Add connected plots to pending delete list
-        Plot basePlot = e.getPlot().getBasePlot(false);
-        pendingDelete.put(e.getPlot().getWorldName() + ";" + e.getPlot().getId().getX() + ";" + e.getPlot().getId().getY(),
-                          basePlot.getConnectedPlots().stream().map(plot -> plot.getId()).toList());
+        // Skip it if the cached marker is up to date
+        String plotKey = keys.plotKey(keys.key(plot.worldName, plot.idX, plot.idZ));
+        scan.markSeen(plotKey);
+        Long cachedHash = plugin.markerCache.getHash(plotKey);
+        if (cachedHash != null && cachedHash == contentHash(plot))
+        {
+            return;
+        }
+        addMarker(plot);
     }
     
-    @Subscribe
-    public void onPostPlotDelete(PostPlotDeleteEvent e)
+    @Override
+    public void scanComplete(MarkerCache.Scan scan)
     {
-        // Remove markers for all plots in the list
+        // Remove cached markers for plots that no longer exist
+        for (MarkerCache.Entry entry : plugin.markerCache.removeUnseen(scan, keyPrefix))
+        {
+            Long key = keys.key(entry.worldName, entry.plotKey);
+            if (key != null)
+            {
+                layer.removeMarkers(entry.worldName, MarkerKeys.getIdX(key), MarkerKeys.getIdZ(key), entry.markerIds);
+                keys.remove(key);
+            }
+        }
         
-        Plot basePlot = e.getPlot();
-        String worldName = basePlot.getWorldName();
-        List<PlotId> plotIds = pendingDelete.get(worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
-        if (plotIds != null)
+        // Report once the markers have been published
+        plugin.pipeline.runWhenIdle(() ->
         {
-            for (PlotId plotId : plotIds)
+            for (String worldName : worldNames)
             {
-                Plot plot = Plot.getPlotFromString(null, worldName + ";" + plotId.getX() + ";" + plotId.getY(), false);
-                if (plot != null)
-                {
-                    removeMarker(plot);
-                }
-                else
+                if (layer.hasWorld(worldName))
                 {
-                    plugin.getLogger().warning("No plot found for pending delete " + worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
+                    int numMarkers = layer.getMarkerCount(worldName);
+                    plugin.getLogger().info("Created " + numMarkers + " POI marker" + (numMarkers == 1 ? " for " : "s for ") + worldName + ".");
                 }
             }
-            pendingDelete.remove(worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
-        }
-        else
-        {
-            plugin.getLogger().warning("No pending delete found for " + worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
-        }
+        });
     }
     
     // -------------------------------------------------------------------------
     
-    // Player quit or was kicked
+    // Config reloaded, set the icon and distance of the existing markers
     
-    @EventHandler
-    public void onPlayerQuit(PlayerQuitEvent event)
+    @Override
+    public void configReloaded(Set<String> styleChangedWorlds)
     {
-        // Update all this player's markers
-        Player player = event.getPlayer();
-        UUID uuid = player.getUniqueId();
-        PlotPlayer<?> plotPlayer = plugin.psAPI.wrapPlayer(uuid);
-        final Set<Plot> plots = plotPlayer.getPlots();
-        final Iterator<Plot> plotIterator = plots.iterator();
+        // Forget the plots in worlds which were removed
+        Set<String> newWorldNames = plugin.config.getWorlds();
+        for (String worldName : worldNames)
+        {
+            if (!newWorldNames.contains(worldName))
+            {
+                keys.removeWorld(worldName);
+            }
+        }
+        worldNames = newWorldNames;
         
-        // Give the player time to logout and update in pieces
-        Bukkit.getScheduler().runTaskTimer(plugin, task ->
+        for (String worldName : styleChangedWorlds)
         {
-            long startTime = System.currentTimeMillis();
+            WorldStyle style = plugin.config.getStyle(worldName);
+            String iconUrl = plugin.iconAssets.getIconUrl(worldName, style);
             
-            while (plotIterator.hasNext())
+            for (MarkerLayer.Partition partition : layer.getPartitions(worldName))
             {
-                createMarker(plotIterator.next());
-                if (System.currentTimeMillis() - startTime > maxTaskTime)
+                for (Marker marker : partition.getMarkers())
                 {
-                    return;
+                    restyle(marker, style, iconUrl);
                 }
             }
-            
-            // All done
-            task.cancel();
-            
-        }, 4L, 1L); // Delay 4 ticks, period 1 tick
+        }
+    }
+    
+    // Set the icon and distance of a marker built before the style changed
+    
+    private void restyle(String worldName, Marker marker)
+    {
+        WorldStyle style = plugin.config.getStyle(worldName);
+        if (style != null)
+        {
+            restyle(marker, style, plugin.iconAssets.getIconUrl(worldName, style));
+        }
+    }
+    
+    private void restyle(Marker marker, WorldStyle style, String iconUrl)
+    {
+        if (marker instanceof POIMarker)
+        {
+            if (iconUrl != null)
+            {
+                ((POIMarker)marker).setIcon(iconUrl, style.customIconAnchorX, style.customIconAnchorY);
+            }
+            else
+            {
+                ((POIMarker)marker).setIcon(defaultIcon, defaultIconAnchorX, defaultIconAnchorY);
+            }
+            ((POIMarker)marker).setMaxDistance(style.poiMaxDistance > 0.0 ? style.poiMaxDistance : defaultMaxDistance);
+        }
     }
     
     // -------------------------------------------------------------------------
     
-    // Create a marker. This will overwrite any existing marker.
+    // Rebuild a plot's marker. This will overwrite any existing marker. The
+    // marker is built and published by the pipeline.
     
-    private void createMarker(Plot plot)
+    @Override
+    public void updatePlot(PlotSnapshot plot)
     {
-        String worldName = plot.getWorldName();
-        
-        if (!worldNames.contains(worldName))
+        if (worldNames.contains(plot.worldName))
         {
-            return;
+            addMarker(plot);
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Update the label and detail of a plot's marker
+    
+    @Override
+    public boolean refreshText(PlotSnapshot snapshot)
+    {
+        String worldName = snapshot.worldName;
+        if (!worldNames.contains(worldName) || !layer.hasWorld(worldName))
+        {
+            return true;
         }
         
-        // Calculate position and ID
+        long key = keys.key(worldName, snapshot.idX, snapshot.idZ);
+        String[] published = keys.getPublished(key);
+        MarkerLayer.Partition partition = layer.findPartition(worldName, snapshot.idX, snapshot.idZ);
+        if (published.length == 0 || partition == null)
+        {
+            return false;
+        }
         
-        Location top = plot.getTopAbs();
-        Location bottom = plot.getBottomAbs();
-        double x = (top.getX() + bottom.getX()) / 2.0;
-        double y = 0.0;
-        Integer configY = plugin.config.getY(worldName);
-        if (configY == null)
+        String detail = getDetail(snapshot, plugin.config.getDateFormatter());
+        for (String id : published)
         {
-            // Use plot heights
-            y = (top.getY() + bottom.getY()) / 2.0;
+            Marker marker = partition.get(id);
+            if (marker instanceof POIMarker)
+            {
+                marker.setLabel(snapshot.ownerInfo.name);
+                ((POIMarker)marker).setDetail(detail);
+            }
         }
-        else
+        plugin.markerCache.put(keys.plotKey(key), contentHash(snapshot), worldName, Arrays.asList(published));
+        return true;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Rebuild a plot's marker if it's missing or out of date
+    
+    @Override
+    public Reconciler.Change reconcilePlot(PlotSnapshot plot)
+    {
+        if (!worldNames.contains(plot.worldName) || !layer.hasWorld(plot.worldName))
         {
-            // Use value from config
-            y = configY;
+            return Reconciler.Change.NONE;
         }
-        double z = (top.getZ() + bottom.getZ()) / 2.0;
-        
-        PlotId plotId = plot.getId();
-        int idX = plotId.getX();
-        int idZ = plotId.getY();
-        
-        // Get owner info
         
-        UUID owner = plot.getOwnerAbs();
-        OfflinePlayer player = Bukkit.getOfflinePlayer(owner);
-        
-        String playerName = player.getName();
-        if (playerName == null)
+        long key = keys.key(plot.worldName, plot.idX, plot.idZ);
+        String plotKey = keys.plotKey(key);
+        if (plugin.pipeline.isPending(plotKey))
         {
-            // No player name, use UUID instead
-            playerName = owner.toString();
+            // Already being rebuilt, check it again later
+            return Reconciler.Change.PENDING;
         }
         
-        Calendar firstPlayedDate = new GregorianCalendar();
-        firstPlayedDate.setTimeInMillis(player.getFirstPlayed());
-        SimpleDateFormat format = new SimpleDateFormat(plugin.config.getDateFormat());
-        String firstPlayed = format.format(firstPlayedDate.getTime());
-
-        Calendar lastPlayedDate = new GregorianCalendar();
-        long lastPlayedMillis = player.getLastPlayed();
-        if (lastPlayedMillis == 0)
+        String[] published = keys.getPublished(key);
+        if (published.length == 0)
         {
-            // New player, use first played date as last played date
-            lastPlayedDate = firstPlayedDate;
+            addMarker(plot);
+            return Reconciler.Change.ADDED;
         }
-        else
+        Long cachedHash = plugin.markerCache.getHash(plotKey);
+        if (cachedHash == null || cachedHash != contentHash(plot) ||
+            !layer.hasMarkers(plot.worldName, plot.idX, plot.idZ, published))
+        {
+            addMarker(plot);
+            return Reconciler.Change.UPDATED;
+        }
+        return Reconciler.Change.NONE;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Queue a marker for a captured plot to be built and published
+    
+    private void addMarker(PlotSnapshot plot)
+    {
+        if (!layer.hasWorld(plot.worldName))
         {
-            lastPlayedDate.setTimeInMillis(lastPlayedMillis);
+            return;
         }
-        String lastPlayed = format.format(lastPlayedDate.getTime());
+        
+        long key = keys.key(plot.worldName, plot.idX, plot.idZ);
+        plugin.pipeline.submit(keys, key, contentHash(plot), plot, layer, this::buildMarker, this::restyle);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Build a marker from a plot snapshot. Called on a worker thread.
+    
+    private Map<String, Marker> buildMarker(PlotSnapshot plot)
+    {
+        WorldStyle style = plugin.config.getStyle(plot.worldName);
+        String markerId = keys.markerId(keys.key(plot.worldName, plot.idX, plot.idZ));
+        return buildMarker(plot, markerId, style, plugin.config.getDateFormatter(), plugin.iconAssets.getIconUrl(plot.worldName, style));
+    }
+    
+    // Build a marker given its ID and the world's style, date format, and icon
+    // URL. This doesn't need the server, so it's also used by the benchmarks.
+    
+    static Map<String, Marker> buildMarker(PlotSnapshot plot, String markerId, WorldStyle style, DateFormatter format, String iconUrl)
+    {
+        // Calculate position
+        
+        double x = (plot.topX + plot.bottomX) / 2.0;
+        double y = style.getY(plot.topY, plot.bottomY);
+        double z = (plot.topZ + plot.bottomZ) / 2.0;
         
         POIMarker marker = POIMarker.builder()
                                     .position((x+0.5), y, (z+0.5))
-                                    .label(playerName)
-                                    .detail(playerName + "<br>" +
-                                            idX + ";" + idZ + "<br>" +
-                                            firstPlayed + "<br>" +
-                                            lastPlayed)
+                                    .label(plot.ownerInfo.name)
+                                    .detail(getDetail(plot, format))
                                     .build();
         
-        if (!plugin.config.getCustomIcon(worldName).isEmpty())
+        if (iconUrl != null)
         {
             // Set icon to be used
-            BlueMapWorld world = bmAPI.getWorld(worldName).orElse(null);
-            if (world != null)
-            {
-                // Just grab any old map in the Collection because they should all have the same icon saved
-                Collection<BlueMapMap> maps = world.getMaps();
-                if (!maps.isEmpty())
-                {
-                    BlueMapMap map = maps.iterator().next();
-                    String iconUrl = map.getAssetStorage().getAssetUrl(plugin.config.getCustomIcon(worldName));
-                    marker.setIcon(iconUrl, plugin.config.getCustomIconAnchorX(worldName), plugin.config.getCustomIconAnchorY(worldName));
-                }
-            }
+            marker.setIcon(iconUrl, style.customIconAnchorX, style.customIconAnchorY);
         }
         
-        MarkerSet markerSet = markerSets.get(worldName);
-        markerSet.put(worldName + x + z, marker);
+        if (style.poiMaxDistance > 0.0)
+        {
+            // Hidden when zoomed out, where the clusters are shown
+            marker.setMaxDistance(style.poiMaxDistance);
+        }
+        
+        return Collections.singletonMap(markerId, marker);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the detail text for a plot's marker
+    
+    static String getDetail(PlotSnapshot plot, DateFormatter format)
+    {
+        OwnerCache.Owner owner = plot.ownerInfo;
+        String playerName = owner.name;
+        
+        String firstPlayed = format.format(owner.firstPlayed);
+        String lastPlayed = format.format(owner.lastPlayed);
+        
+        return playerName + "<br>" +
+               plot.idX + ";" + plot.idZ + "<br>" +
+               firstPlayed + "<br>" +
+               lastPlayed;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Hash of the data used to build a plot's marker, to detect changes
+    
+    private long contentHash(PlotSnapshot plot)
+    {
+        WorldStyle style = plugin.config.getStyle(plot.worldName);
+        
+        long hash = MarkerCache.hashStart;
+        hash = MarkerCache.hash(hash, plot.worldName);
+        hash = MarkerCache.hash(hash, plot.topX + plot.bottomX);
+        hash = MarkerCache.hash(hash, Double.doubleToLongBits(style.getY(plot.topY, plot.bottomY)));
+        hash = MarkerCache.hash(hash, plot.topZ + plot.bottomZ);
+        hash = MarkerCache.hash(hash, plot.ownerInfo.name);
+        hash = MarkerCache.hash(hash, getDetail(plot, plugin.config.getDateFormatter()));
+        return hash;
     }
     
     // -------------------------------------------------------------------------
     
-    // Remove a marker
+    // Remove a deleted plot's marker
     
-    private void removeMarker(Plot plot)
+    @Override
+    public void removePlot(String worldName, int idX, int idZ)
     {
-        if (!worldNames.contains(plot.getWorldName()) ||
-            !bmAPI.getMap(plot.getWorldName()).isPresent())
+        if (!worldNames.contains(worldName) || !layer.hasWorld(worldName))
         {
             return;
         }
-        String worldName = plot.getWorldName();
-        Location top = plot.getTopAbs();
-        Location bottom = plot.getBottomAbs();
-        double x = (top.getX() + bottom.getX()) / 2.0;
-        double z = (top.getZ() + bottom.getZ()) / 2.0;
+        long key = keys.key(worldName, idX, idZ);
         
-        MarkerSet markerSet = markerSets.get(worldName);
-        markerSet.remove(worldName + x + z);
+        String plotKey = keys.plotKey(key);
+        plugin.pipeline.cancel(plotKey);
+        plugin.markerCache.remove(plotKey);
+        
+        String[] ids = keys.remove(key);
+        layer.removeMarkers(worldName, idX, idZ, Arrays.asList(ids));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Start removing the markers of plots which are gone, and markers which
+    // don't belong to any plot
+    
+    @Override
+    public GhostSweep sweepGhosts(String worldName, Reconciler reconciler)
+    {
+        if (!worldNames.contains(worldName) || !layer.hasWorld(worldName))
+        {
+            return null;
+        }
+        return new GhostSweep(this, keys, layer, worldName, reconciler);
     }
 
 }
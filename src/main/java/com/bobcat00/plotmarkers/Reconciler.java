@@ -0,0 +1,363 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.plotsquared.core.plot.Plot;
+import com.plotsquared.core.plot.PlotArea;
+import com.plotsquared.core.plot.PlotId;
+
+// Fixes markers which have drifted from the plots, e.g. because PlotSquared
+// expired a plot, the database was edited, or an event was missed. Every few
+// minutes all the plots are walked and each producer rebuilds the markers
+// which are missing or out of date. Then the markers of plots which no longer
+// exist, and markers which don't belong to any plot, are removed.
+//
+// The walks of the plots and of the markers are done in short slices, one per
+// tick, so they stay out of the way of the other jobs.
+
+public final class Reconciler
+{
+    // What a producer did to one plot's markers
+    
+    public enum Change
+    {
+        NONE,
+        ADDED,
+        UPDATED,
+        REMOVED,
+        
+        // A build is in progress, so check it again later
+        PENDING
+    }
+    
+    // Main thread time used per tick
+    final long sliceTime = 1_000_000L; // nsec
+    
+    final long ticksPerMinute = 1200L;
+    
+    // Plots with builds in progress are checked again after a delay, a few
+    // times, before moving on. Any left over are checked by the next run.
+    final long retryTicks = 100L;
+    final int maxRetries = 3;
+    
+    private PlotMarkers plugin;
+    
+    // Empty until BlueMap is enabled
+    private List<MarkerProducer> producers = Collections.emptyList();
+    
+    // State of the current run. Changing the run number stops it.
+    private int run = 0;
+    private boolean running = false;
+    private Iterator<Plot> plotIterator;
+    private List<Plot> retryPlots = new ArrayList<Plot>();
+    private int retries;
+    private Set<String> worldNames;
+    private final Map<String, Set<Long>> checked = new HashMap<String, Set<Long>>();
+    private final Deque<GhostSweep> sweeps = new ArrayDeque<GhostSweep>();
+    private long startTime;
+    private int plots;
+    private int added;
+    private int updated;
+    private int removed;
+    private int strays;
+    
+    // Results of the last run. Removed is plots, strays is markers which
+    // didn't belong to any plot.
+    private volatile long runs = 0;
+    private volatile int lastAdded = 0;
+    private volatile int lastUpdated = 0;
+    private volatile int lastRemoved = 0;
+    private volatile int lastStrays = 0;
+    
+    // -------------------------------------------------------------------------
+    
+    public Reconciler(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        plugin.scheduler.submit(this::start, delayTicks());
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Set the producers when BlueMap is enabled. Any run in progress is
+    // stopped since its producers are gone.
+    
+    public void setProducers(List<MarkerProducer> producers)
+    {
+        this.producers = producers;
+        ++run;
+        running = false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Ticks until the next run. When reconciling is off, the config is checked
+    // again after a minute.
+    
+    private long delayTicks()
+    {
+        return Math.max(plugin.config.getReconcileInterval(), 1) * ticksPerMinute;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Start a run, unless one is still going or a world is being rebuilt.
+    // Scheduler job which runs once and then resubmits itself.
+    
+    private boolean start()
+    {
+        plugin.scheduler.submit(this::start, delayTicks());
+        
+        if (running || producers.isEmpty() || plugin.config.getReconcileInterval() == 0 ||
+            plugin.listeners.isRebuilding())
+        {
+            return false;
+        }
+        
+        running = true;
+        final int thisRun = ++run;
+        plotIterator = plugin.psAPI.getAllPlots().iterator();
+        worldNames = new HashSet<String>(plugin.config.getWorlds());
+        checked.clear();
+        retryPlots.clear();
+        sweeps.clear();
+        retries = 0;
+        startTime = System.nanoTime();
+        plots = 0;
+        added = 0;
+        updated = 0;
+        removed = 0;
+        strays = 0;
+        
+        plugin.scheduler.submit(() -> checkPlots(thisRun));
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Check the plots until this tick's slice is used up, then continue on
+    // the next tick
+    
+    private boolean checkPlots(int thisRun)
+    {
+        if (thisRun != run)
+        {
+            return false;
+        }
+        
+        long deadline = System.nanoTime() + sliceTime;
+        while (plotIterator.hasNext())
+        {
+            Plot plot = plotIterator.next();
+            String worldName = plot.getWorldName();
+            PlotId plotId = plot.getId();
+            
+            // Skip plots deleted since the run started
+            if (worldNames.contains(worldName) && plotExists(worldName, plotId.getX(), plotId.getY()) &&
+                PlotSnapshot.canCapture(plugin, plot))
+            {
+                PlotSnapshot snapshot = PlotSnapshot.capture(plugin, plot);
+                if (retries == 0)
+                {
+                    checked.computeIfAbsent(worldName, k -> new HashSet<Long>()).add(GridUnion.pack(snapshot.idX, snapshot.idZ));
+                    ++plots;
+                }
+                boolean pending = false;
+                for (MarkerProducer producer : producers)
+                {
+                    Change change = producer.reconcilePlot(snapshot);
+                    pending |= (change == Change.PENDING);
+                    count(change);
+                }
+                if (pending)
+                {
+                    retryPlots.add(plot);
+                }
+            }
+            
+            if (System.nanoTime() >= deadline)
+            {
+                plugin.scheduler.submit(() -> checkPlots(thisRun), 1L);
+                return false;
+            }
+        }
+        
+        // Check the plots which were still building again
+        if (!retryPlots.isEmpty() && retries < maxRetries)
+        {
+            ++retries;
+            plotIterator = retryPlots.iterator();
+            retryPlots = new ArrayList<Plot>();
+            plugin.scheduler.submit(() -> checkPlots(thisRun), retryTicks);
+            return false;
+        }
+        
+        // Then the markers, one sweep for each world and producer
+        for (String worldName : worldNames)
+        {
+            for (MarkerProducer producer : producers)
+            {
+                GhostSweep sweep = producer.sweepGhosts(worldName, this);
+                if (sweep != null)
+                {
+                    sweeps.addLast(sweep);
+                }
+            }
+        }
+        plugin.scheduler.submit(() -> checkMarkers(thisRun), 1L);
+        return false;
+    }
+    
+    private void count(Change change)
+    {
+        switch (change)
+        {
+            case ADDED:
+                ++added;
+                break;
+            case UPDATED:
+                ++updated;
+                break;
+            case REMOVED:
+                ++removed;
+                break;
+            default:
+                break;
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Remove the markers which don't belong to a plot until this tick's slice
+    // is used up, then continue on the next tick
+    
+    private boolean checkMarkers(int thisRun)
+    {
+        if (thisRun != run)
+        {
+            return false;
+        }
+        
+        long deadline = System.nanoTime() + sliceTime;
+        GhostSweep sweep;
+        while ((sweep = sweeps.peekFirst()) != null)
+        {
+            if (sweep.step(deadline))
+            {
+                plugin.scheduler.submit(() -> checkMarkers(thisRun), 1L);
+                return false;
+            }
+            sweeps.pollFirst();
+            removed += sweep.getPlotsRemoved();
+            strays += sweep.getStrayMarkersRemoved();
+        }
+        
+        finish();
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private void finish()
+    {
+        running = false;
+        plotIterator = null;
+        checked.clear();
+        retryPlots.clear();
+        
+        ++runs;
+        lastAdded = added;
+        lastUpdated = updated;
+        lastRemoved = removed;
+        lastStrays = strays;
+        
+        long millis = (System.nanoTime() - startTime) / 1_000_000L;
+        plugin.getLogger().info("Reconciled " + plots + " plot" + (plots == 1 ? "" : "s") + " in " + millis + " ms: " +
+                                added + " added, " + updated + " updated, " + removed + " removed, " +
+                                strays + " stray marker" + (strays == 1 ? "" : "s") + " removed.");
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Whether a plot with markers is gone. It must not have been checked by
+    // this run, and must not exist now, so plots claimed during the run are
+    // kept. Called by the producers.
+    
+    public boolean isGhost(String worldName, int idX, int idZ)
+    {
+        Set<Long> worldChecked = checked.get(worldName);
+        if (worldChecked != null && worldChecked.contains(GridUnion.pack(idX, idZ)))
+        {
+            return false;
+        }
+        return !plotExists(worldName, idX, idZ);
+    }
+    
+    private boolean plotExists(String worldName, int idX, int idZ)
+    {
+        PlotId plotId = PlotId.of(idX, idZ);
+        for (PlotArea area : plugin.psAPI.getPlotAreas(worldName))
+        {
+            if (area.getOwnedPlotAbs(plotId) != null)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Stats
+    
+    public long getRuns()
+    {
+        return runs;
+    }
+    
+    public int getLastAdded()
+    {
+        return lastAdded;
+    }
+    
+    public int getLastUpdated()
+    {
+        return lastUpdated;
+    }
+    
+    public int getLastRemoved()
+    {
+        return lastRemoved;
+    }
+    
+    public int getLastStrays()
+    {
+        return lastStrays;
+    }
+
+}
@@ -16,81 +16,49 @@
 
 package com.bobcat00.plotmarkers;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.GregorianCalendar;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
-import org.bukkit.entity.Player;
-import org.bukkit.event.EventHandler;
-import org.bukkit.event.Listener;
-import org.bukkit.event.player.PlayerQuitEvent;
-
 import com.flowpowered.math.vector.Vector2d;
-import com.flowpowered.math.vector.Vector2i;
-import com.google.common.eventbus.Subscribe;
 import com.plotsquared.core.PlotSquared;
 import com.plotsquared.core.configuration.file.YamlConfiguration;
-import com.plotsquared.core.events.PlotClaimedNotifyEvent;
-import com.plotsquared.core.events.PlotDeleteEvent;
-import com.plotsquared.core.events.PlotUnlinkEvent;
-import com.plotsquared.core.events.post.PostPlotChangeOwnerEvent;
-import com.plotsquared.core.events.post.PostPlotDeleteEvent;
-import com.plotsquared.core.events.post.PostPlotMergeEvent;
-import com.plotsquared.core.events.post.PostPlotUnlinkEvent;
-import com.plotsquared.core.location.Location;
-import com.plotsquared.core.player.PlotPlayer;
-import com.plotsquared.core.plot.Plot;
-import com.plotsquared.core.plot.PlotId;
-import com.technicjelle.BMUtils.Cheese;
 
 import de.bluecolored.bluemap.api.BlueMapAPI;
-import de.bluecolored.bluemap.api.markers.MarkerSet;
+import de.bluecolored.bluemap.api.markers.Marker;
 import de.bluecolored.bluemap.api.markers.ShapeMarker;
-import de.bluecolored.bluemap.api.math.Color;
 import de.bluecolored.bluemap.api.math.Shape;
 
-public final class ShapeMarkers implements Listener
+public final class ShapeMarkers implements MarkerProducer
 {
     private PlotMarkers plugin;
     private BlueMapAPI bmAPI;
     
-    // Maximum runtime of task creating/updating markers
-    final long maxTaskTime = 10; // msec
-    
     // Only output markers in these worlds
     private Set<String> worldNames;
     
-    // BlueMap marker set
-    private ConcurrentHashMap<String, MarkerSet> markerSets;
+    // BlueMap marker sets
+    private MarkerLayer layer;
+    
+    // Prefix of the plot keys
+    static final String keyPrefix = "shape;";
+    
+    // Plot keys and marker IDs
+    private final MarkerKeys keys = new MarkerKeys(keyPrefix, "shape:");
     
     // Size of plots in each world
     private ConcurrentHashMap<String, Vector2d> plotSize = new ConcurrentHashMap<String, Vector2d>();
     
-    // Maps to handle passing data between events
-    private Map<String, List<PlotId>> pendingUnlink = Collections.synchronizedMap(new HashMap<String, List<PlotId>>());
-    private Map<String, List<PlotId>> pendingDelete = Collections.synchronizedMap(new HashMap<String, List<PlotId>>());
-    
     // -------------------------------------------------------------------------
     
-    public ShapeMarkers(PlotMarkers plugin, BlueMapAPI bmAPI, ConcurrentHashMap<String, MarkerSet> markerSets)
+    public ShapeMarkers(PlotMarkers plugin, BlueMapAPI bmAPI, MarkerLayer layer)
     {
         this.plugin = plugin;
         this.bmAPI = bmAPI;
-        this.markerSets = markerSets;
-        
-        plugin.getServer().getPluginManager().registerEvents(this, plugin);
-        plugin.psAPI.registerListener(this);
+        this.layer = layer;
         
         // Get list of worlds from config file
         worldNames = plugin.config.getWorlds();
@@ -102,323 +70,451 @@ public final class ShapeMarkers implements Listener
             plotSize.put(worldName,  size);
         }
         
-        // Get all the PlotSquared plots
-        final Set<Plot> plots = plugin.psAPI.getAllPlots();
-        final Iterator<Plot> plotIterator = plots.iterator();
-        
-        // Break this up into pieces
-        Bukkit.getScheduler().runTaskTimer(plugin, task ->
-        {
-            long startTime = System.currentTimeMillis();
-            
-            // Go through the base plots
-            // Seems to always be the upper left plot
-            while (plotIterator.hasNext())
-            {
-                Plot plot = plotIterator.next();
-                if (plot.isBasePlot())
-                {
-                    createShape(plot);
-                }
-                if (System.currentTimeMillis() - startTime > maxTaskTime)
-                {
-                    return;
-                }
-            }
-            
-            // All done
-            task.cancel();
-            
-            for (String worldName : worldNames)
-            {
-                MarkerSet markerSet = markerSets.get(worldName);
-                if (markerSet != null)
-                {
-                    int numMarkers = markerSet.getMarkers().size();
-                    plugin.getLogger().info("Created " + numMarkers + " shape marker" + (numMarkers == 1 ? " for " : "s for ") + worldName + ".");
-                }
-            }
-        }, 0L, 1L); // delay 0, period 1
+        plugin.markerCache.register(keyPrefix, layer);
     }
     
     // -------------------------------------------------------------------------
     
-    // Handle /plot claim and /plot auto
-    
-    @Subscribe
-    public void onPlotClaimNotify(PlotClaimedNotifyEvent e)
+    @Override
+    public String getKeyPrefix()
     {
-        createShape(e.getPlot().getBasePlot(false));
+        return keyPrefix;
     }
     
     // -------------------------------------------------------------------------
     
-    // Handle /plot setowner
+    // Restore a plot's shape from the marker cache
     
-    @Subscribe
-    public void onPlotChangeOwner(PostPlotChangeOwnerEvent e)
+    @Override
+    public void restore(MarkerCache.Entry entry)
     {
-        createShape(e.getPlot().getBasePlot(false));
-    }
-    
-    // -------------------------------------------------------------------------
-    
-    // Handle /plot merge after merge has been completed
-    
-    @Subscribe
-    public void onPostPlotMerge(PostPlotMergeEvent e)
-    {
-        Plot basePlot = e.getPlot().getBasePlot(false);
+        Long key = keys.key(entry.worldName, entry.plotKey);
+        if (key == null || !layer.hasWorld(entry.worldName) || !worldNames.contains(entry.worldName))
+        {
+            // World no longer used
+            plugin.markerCache.remove(entry.plotKey);
+            return;
+        }
+        MarkerLayer.Partition partition = layer.getPartition(entry.worldName, MarkerKeys.getIdX(key), MarkerKeys.getIdZ(key));
         
-        // Remove existing shapes from all connected plots
-        // Presumably these are the individual plots being merged
+        WorldStyle style = plugin.config.getStyle(entry.worldName);
         
-        Set<Plot> plots = basePlot.getConnectedPlots();
-        for (Plot plot : plots)
+        for (MarkerCache.CachedMarker cached : entry.markers)
         {
-            removeShape(plot);
+            ShapeMarker marker = ShapeMarker.builder()
+                    .shape(cached.shape, cached.shapeY)
+                    .holes(cached.holes)
+                    .label(cached.label)
+                    .detail(cached.detail)
+                    .depthTestEnabled(false)
+                    .lineWidth(style.lineWidth)
+                    .fillColor(style.fillColor)
+                    .lineColor(style.lineColor)
+                    .build();
+            partition.put(cached.id, marker);
         }
         
-        // Create new shape for the merged plot
-        
-        createShape(basePlot);
+        keys.setPublished(key, entry.markerIds);
     }
     
     // -------------------------------------------------------------------------
     
-    // Handle /plot unlink in two stages
-    
-    @Subscribe
-    public void onPlotUnlink(PlotUnlinkEvent e)
-    {
-        // Add connected plots to pending unlink list
-        Plot basePlot = e.getPlot().getBasePlot(false);
-        pendingUnlink.put(e.getPlot().getWorldName() + ";" + e.getPlot().getId().getX() + ";" + e.getPlot().getId().getY(),
-                          basePlot.getConnectedPlots().stream().map(plot -> plot.getId()).toList());
-    }
+    // Startup scan, create a shape for each base plot
     
-    @Subscribe
-    public void onPostPlotUnlink(PostPlotUnlinkEvent e)
+    @Override
+    public void scanPlot(PlotSnapshot plot, MarkerCache.Scan scan)
     {
-        // Create shapes for all plots in the list
-        Plot basePlot = e.getPlot();
-        String worldName = basePlot.getWorldName();
-        List<PlotId> plotIds = pendingUnlink.get(worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
-        if (plotIds != null)
+        // Seems to always be the upper left plot
+        if (plot.basePlot)
         {
-            for (PlotId plotId : plotIds)
+            // Skip it if the cached shape is up to date, only updating the
+            // label and detail if they changed
+            long key = keys.key(plot.worldName, plot.idX, plot.idZ);
+            String plotKey = keys.plotKey(key);
+            scan.markSeen(plotKey);
+            Long cachedHash = plugin.markerCache.getHash(plotKey);
+            if (cachedHash != null && cachedHash == geometryHash(plot))
             {
-                Plot plot = Plot.getPlotFromString(null, worldName + ";" + plotId.getX() + ";" + plotId.getY(), false);
-                if (plot != null)
-                {
-                    createShape(plot);
-                }
-                else
+                if (!textMatches(plot, keys.getPublished(key)))
                 {
-                    plugin.getLogger().warning("No plot found for pending unlink " + worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
+                    refreshText(plot);
                 }
+                return;
             }
-            pendingUnlink.remove(worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
+            addShape(plot);
         }
-        else
+    }
+    
+    @Override
+    public void scanComplete(MarkerCache.Scan scan)
+    {
+        // Remove cached shapes for plots that no longer exist
+        for (MarkerCache.Entry entry : plugin.markerCache.removeUnseen(scan, keyPrefix))
         {
-            plugin.getLogger().warning("No pending unlink found for " + worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
+            Long key = keys.key(entry.worldName, entry.plotKey);
+            if (key != null)
+            {
+                layer.removeMarkers(entry.worldName, MarkerKeys.getIdX(key), MarkerKeys.getIdZ(key), entry.markerIds);
+                keys.remove(key);
+            }
         }
+        
+        // Report once the markers have been published
+        plugin.pipeline.runWhenIdle(() ->
+        {
+            for (String worldName : worldNames)
+            {
+                if (layer.hasWorld(worldName))
+                {
+                    int numMarkers = layer.getMarkerCount(worldName);
+                    plugin.getLogger().info("Created " + numMarkers + " shape marker" + (numMarkers == 1 ? " for " : "s for ") + worldName + ".");
+                }
+            }
+        });
     }
     
     // -------------------------------------------------------------------------
     
-    // Handle /plot delete in two stages
-    
-    @Subscribe
-    public void onPlotDelete(PlotDeleteEvent e)
-    {
-        // Add connected plots to pending delete list
-        Plot basePlot = e.getPlot().getBasePlot(false);
-        pendingDelete.put(e.getPlot().getWorldName() + ";" + e.getPlot().getId().getX() + ";" + e.getPlot().getId().getY(),
-                          basePlot.getConnectedPlots().stream().map(plot -> plot.getId()).toList());
-    }
+    // Config reloaded, set the colors and line width of the existing shapes
     
-    @Subscribe
-    public void onPostPlotDelete(PostPlotDeleteEvent e)
+    @Override
+    public void configReloaded(Set<String> styleChangedWorlds)
     {
-        // Remove markers for all plots in the list
+        // Forget the plots in worlds which were removed
+        Set<String> newWorldNames = plugin.config.getWorlds();
+        for (String worldName : worldNames)
+        {
+            if (!newWorldNames.contains(worldName))
+            {
+                keys.removeWorld(worldName);
+            }
+        }
+        worldNames = newWorldNames;
         
-        Plot basePlot = e.getPlot();
-        String worldName = basePlot.getWorldName();
-        List<PlotId> plotIds = pendingDelete.get(worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
-        if (plotIds != null)
+        // Calculate the plot size for any new worlds
+        for (String worldName : worldNames)
         {
-            for (PlotId plotId : plotIds)
+            if (!plotSize.containsKey(worldName))
             {
-                Plot plot = Plot.getPlotFromString(null, worldName + ";" + plotId.getX() + ";" + plotId.getY(), false);
-                if (plot != null)
-                {
-                    removeShape(plot);
-                }
-                else
+                plotSize.put(worldName, getPlotSize(worldName));
+            }
+        }
+        
+        for (String worldName : styleChangedWorlds)
+        {
+            WorldStyle style = plugin.config.getStyle(worldName);
+            
+            for (MarkerLayer.Partition partition : layer.getPartitions(worldName))
+            {
+                for (Marker marker : partition.getMarkers())
                 {
-                    plugin.getLogger().warning("No plot found for pending delete " + worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
+                    restyle(marker, style);
                 }
             }
-            pendingDelete.remove(worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
         }
-        else
+    }
+    
+    // Set the colors and line width of a shape built before the style changed
+    
+    private void restyle(String worldName, Marker marker)
+    {
+        WorldStyle style = plugin.config.getStyle(worldName);
+        if (style != null)
+        {
+            restyle(marker, style);
+        }
+    }
+    
+    private void restyle(Marker marker, WorldStyle style)
+    {
+        if (marker instanceof ShapeMarker)
         {
-            plugin.getLogger().warning("No pending delete found for " + worldName + ";" + basePlot.getId().getX() + ";" + basePlot.getId().getY());
+            ShapeMarker shape = (ShapeMarker)marker;
+            shape.setLineWidth(style.lineWidth);
+            shape.setFillColor(style.fillColor);
+            shape.setLineColor(style.lineColor);
         }
     }
     
     // -------------------------------------------------------------------------
     
-    // Player quit or was kicked
+    // Rebuild a plot's shape. This will overwrite any existing shape. Only base
+    // plots have shapes, and the shapes of any plots merged into this one are
+    // removed. The shape is built and published by the pipeline.
     
-    @EventHandler
-    public void onPlayerQuit(PlayerQuitEvent event)
+    @Override
+    public void updatePlot(PlotSnapshot basePlot)
     {
-        // Update all this player's markers
-        Player player = event.getPlayer();
-        UUID uuid = player.getUniqueId();
-        PlotPlayer<?> plotPlayer = plugin.psAPI.wrapPlayer(uuid);
-        final Set<Plot> plots = plotPlayer.getPlots();
-        final Iterator<Plot> plotIterator = plots.iterator();
-        
-        // Give the player time to logout and update in pieces
-        Bukkit.getScheduler().runTaskTimer(plugin, task ->
+        if (!basePlot.basePlot || !worldNames.contains(basePlot.worldName))
         {
-            long startTime = System.currentTimeMillis();
-            
-            while (plotIterator.hasNext())
+            return;
+        }
+        
+        for (int i = 0; i < basePlot.connected.length; i += 2)
+        {
+            int idX = basePlot.connected[i];
+            int idZ = basePlot.connected[i+1];
+            if ((idX != basePlot.idX || idZ != basePlot.idZ) &&
+                keys.getPublished(keys.key(basePlot.worldName, idX, idZ)).length > 0)
             {
-                Plot plot = plotIterator.next();
-                if (plot.isBasePlot())
-                {
-                    createShape(plot);
-                }
-                if (System.currentTimeMillis() - startTime > maxTaskTime)
-                {
-                    return;
-                }
+                removePlot(basePlot.worldName, idX, idZ);
             }
-            
-            // All done
-            task.cancel();
-            
-        }, 4L, 1L); // Delay 4 ticks, period 1 tick
+        }
+        
+        addShape(basePlot);
     }
     
     // -------------------------------------------------------------------------
     
-    // Create a shape. This will overwrite any existing shape.
-    // getConnected should normally be true.
+    // Update the label and detail of a plot's shape. The connected plots
+    // aren't needed, so the geometry isn't touched.
     
-    private void createShape(Plot basePlot)
+    @Override
+    public boolean refreshText(PlotSnapshot snapshot)
     {
-        String worldName = basePlot.getWorldName();
-        
-        if (!worldNames.contains(worldName))
+        String worldName = snapshot.worldName;
+        if (!snapshot.basePlot || !worldNames.contains(worldName) || !layer.hasWorld(worldName))
         {
-            return;
+            return true;
         }
         
-        // Calculate y position
-        
-        double y = 0.0;
-        Integer configY = plugin.config.getY(worldName);
-        if (configY == null)
+        long key = keys.key(worldName, snapshot.idX, snapshot.idZ);
+        String[] published = keys.getPublished(key);
+        MarkerLayer.Partition partition = layer.findPartition(worldName, snapshot.idX, snapshot.idZ);
+        if (published.length == 0 || partition == null)
         {
-            // Use plot heights
-            Location top = basePlot.getTopAbs();
-            Location bottom = basePlot.getBottomAbs();
-            y = (top.getY() + bottom.getY()) / 2.0;
+            return false;
         }
-        else
+        
+        String detail = getDetail(snapshot, plugin.config.getDateFormatter());
+        for (String id : published)
         {
-            // Use value from config
-            y = configY;
+            Marker marker = partition.get(id);
+            if (marker instanceof ShapeMarker)
+            {
+                marker.setLabel(snapshot.ownerInfo.name);
+                ((ShapeMarker)marker).setDetail(detail);
+            }
         }
         
-        // Get plot ID
-        
-        PlotId plotId = basePlot.getId();
-        int idX = plotId.getX();
-        int idZ = plotId.getY();
-        
-        // Get owner info
+        // The cached hash doesn't include the text, so it's still valid
+        return true;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Rebuild a base plot's shape if it's missing or out of date. Plots which
+    // have been merged into another plot shouldn't have a shape.
+    
+    @Override
+    public Reconciler.Change reconcilePlot(PlotSnapshot plot)
+    {
+        if (!worldNames.contains(plot.worldName) || !layer.hasWorld(plot.worldName))
+        {
+            return Reconciler.Change.NONE;
+        }
         
-        UUID owner = basePlot.getOwnerAbs();
-        OfflinePlayer player = Bukkit.getOfflinePlayer(owner);
+        // Plots merged into another plot have no shape of their own. This is
+        // checked before getting the plot key, so they don't get one.
+        long key = keys.key(plot.worldName, plot.idX, plot.idZ);
+        if (!plot.basePlot)
+        {
+            if (keys.getPublished(key).length == 0)
+            {
+                return Reconciler.Change.NONE;
+            }
+            removePlot(plot.worldName, plot.idX, plot.idZ);
+            return Reconciler.Change.REMOVED;
+        }
         
-        String playerName = player.getName();
-        if (playerName == null)
+        String plotKey = keys.plotKey(key);
+        if (plugin.pipeline.isPending(plotKey))
         {
-            // No player name, use UUID instead
-            playerName = owner.toString();
+            // Already being rebuilt, check it again later
+            return Reconciler.Change.PENDING;
         }
         
-        Calendar firstPlayedDate = new GregorianCalendar();
-        firstPlayedDate.setTimeInMillis(player.getFirstPlayed());
-        SimpleDateFormat format = new SimpleDateFormat(plugin.config.getDateFormat());
-        String firstPlayed = format.format(firstPlayedDate.getTime());
-
-        Calendar lastPlayedDate = new GregorianCalendar();
-        long lastPlayedMillis = player.getLastPlayed();
-        if (lastPlayedMillis == 0)
+        String[] published = keys.getPublished(key);
+        if (published.length == 0)
         {
-            // New player, use first played date as last played date
-            lastPlayedDate = firstPlayedDate;
+            addShape(plot);
+            return Reconciler.Change.ADDED;
         }
-        else
+        Long cachedHash = plugin.markerCache.getHash(plotKey);
+        if (cachedHash == null || cachedHash != geometryHash(plot) ||
+            !layer.hasMarkers(plot.worldName, plot.idX, plot.idZ, published))
         {
-            lastPlayedDate.setTimeInMillis(lastPlayedMillis);
+            addShape(plot);
+            return Reconciler.Change.UPDATED;
         }
-        String lastPlayed = format.format(lastPlayedDate.getTime());
+        if (!textMatches(plot, published))
+        {
+            refreshText(plot);
+            return Reconciler.Change.UPDATED;
+        }
+        return Reconciler.Change.NONE;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Queue a shape for a captured plot to be built and published
+    
+    private void addShape(PlotSnapshot basePlot)
+    {
+        if (!layer.hasWorld(basePlot.worldName))
+        {
+            return;
+        }
+        
+        long key = keys.key(basePlot.worldName, basePlot.idX, basePlot.idZ);
+        plugin.pipeline.submit(keys, key, geometryHash(basePlot), basePlot, layer, this::buildShape, this::restyle);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Build a shape from a plot snapshot. Called on a worker thread.
+    
+    private Map<String, Marker> buildShape(PlotSnapshot basePlot)
+    {
+        String worldName = basePlot.worldName;
+        return buildShape(basePlot,
+                          keys.markerId(keys.key(worldName, basePlot.idX, basePlot.idZ)),
+                          plugin.config.getStyle(worldName),
+                          plugin.config.getDateFormatter(),
+                          plugin.geometryCache,
+                          plotSize.get(worldName));
+    }
+    
+    // Build a shape given its ID and the world's style, date format, and plot
+    // size. This doesn't need the server, so it's also used by the benchmarks.
+    
+    static Map<String, Marker> buildShape(PlotSnapshot basePlot, String markerId, WorldStyle style, DateFormatter format,
+                                          GeometryCache geometryCache, Vector2d plotSize)
+    {
+        // Calculate y position
+        
+        double y = style.getY(basePlot.topY, basePlot.bottomY);
+        
+        // Get owner info
+        
+        String playerName = basePlot.ownerInfo.name;
+        String detail = getDetail(basePlot, format);
         
         // Get the plots for this shape
         
-        Vector2i[] plotCoordinates = basePlot.getConnectedPlots().stream().
-                                     map(plot -> new Vector2i(plot.getId().getX()-1, plot.getId().getY()-1)).toArray(Vector2i[]::new);
-        Collection<Cheese> platter = Cheese.createPlatterFromCells(plotSize.get(worldName), plotCoordinates);
+        int[] plotCoordinates = new int[basePlot.connected.length];
+        for (int i = 0; i < plotCoordinates.length; ++i)
+        {
+            plotCoordinates[i] = basePlot.connected[i] - 1;
+        }
+        List<Shape[]> polygons = geometryCache.getPolygons(plotSize, plotCoordinates);
+        
+        // Each polygon is a separate marker
         
-        for (Cheese cheese : platter)
+        Map<String, Marker> markers = new HashMap<String, Marker>();
+        int piece = 0;
+        for (Shape[] polygon : polygons)
         {
             ShapeMarker marker = ShapeMarker.builder()
-                    .shape(cheese.getShape(), (float)y)
-                    .holes(cheese.getHoles().toArray(Shape[]::new))
+                    .shape(polygon[0], (float)y)
+                    .holes(Arrays.copyOfRange(polygon, 1, polygon.length))
                     .label(playerName)
-                    .detail(playerName + "<br>" +
-                            idX + ";" + idZ + "<br>" +
-                            firstPlayed + "<br>" +
-                            lastPlayed)
+                    .detail(detail)
                     .depthTestEnabled(false)
-                    .lineWidth(plugin.config.getLineWidth(worldName))
-                    .fillColor(new Color(plugin.config.getFillColor(worldName), plugin.config.getFillOpacity(worldName)))
-                    .lineColor(new Color(plugin.config.getLineColor(worldName), plugin.config.getLineOpacity(worldName)))
+                    .lineWidth(style.lineWidth)
+                    .fillColor(style.fillColor)
+                    .lineColor(style.lineColor)
                     .build();
             
-            MarkerSet markerSet = markerSets.get(worldName);
-            markerSet.put("shape" + worldName + idX + idZ, marker);
+            markers.put(MarkerKeys.pieceId(markerId, piece++), marker);
+        }
+        return markers;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the detail text for a plot's shape
+    
+    static String getDetail(PlotSnapshot basePlot, DateFormatter format)
+    {
+        OwnerCache.Owner owner = basePlot.ownerInfo;
+        String playerName = owner.name;
+        
+        String firstPlayed = format.format(owner.firstPlayed);
+        String lastPlayed = format.format(owner.lastPlayed);
+        
+        return playerName + "<br>" +
+               basePlot.idX + ";" + basePlot.idZ + "<br>" +
+               firstPlayed + "<br>" +
+               lastPlayed;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Hash of the data used to build a plot's shape, to detect changes. The
+    // connected plots are combined so their order doesn't matter. The label
+    // and detail aren't included since they're updated in place without the
+    // connected plots, and are checked against the published shape instead.
+    
+    private long geometryHash(PlotSnapshot basePlot)
+    {
+        WorldStyle style = plugin.config.getStyle(basePlot.worldName);
+        
+        long hash = MarkerCache.hashStart;
+        hash = MarkerCache.hash(hash, basePlot.worldName);
+        hash = MarkerCache.hash(hash, Double.doubleToLongBits(style.getY(basePlot.topY, basePlot.bottomY)));
+        hash = MarkerCache.hash(hash, Double.doubleToLongBits(plotSize.get(basePlot.worldName).getX()));
+        
+        long cells = 0;
+        for (int i = 0; i < basePlot.connected.length; i += 2)
+        {
+            cells += MarkerCache.hash(MarkerCache.hashStart, ((long)basePlot.connected[i] << 32) | (basePlot.connected[i+1] & 0xffffffffL));
+        }
+        return MarkerCache.hash(hash, cells);
+    }
+    
+    // Whether the label and detail of a plot's published shapes are current
+    
+    private boolean textMatches(PlotSnapshot basePlot, String[] published)
+    {
+        MarkerLayer.Partition partition = layer.findPartition(basePlot.worldName, basePlot.idX, basePlot.idZ);
+        if (partition == null)
+        {
+            return published.length == 0;
+        }
+        
+        String detail = getDetail(basePlot, plugin.config.getDateFormatter());
+        for (String id : published)
+        {
+            Marker marker = partition.get(id);
+            if (marker instanceof ShapeMarker &&
+                (!basePlot.ownerInfo.name.equals(marker.getLabel()) || !detail.equals(((ShapeMarker)marker).getDetail())))
+            {
+                return false;
+            }
         }
+        return true;
     }
     
     // -------------------------------------------------------------------------
     
-    // Remove a marker
+    // Remove a plot's shape, when it's deleted or merged into another plot
     
-    private void removeShape(Plot plot)
+    @Override
+    public void removePlot(String worldName, int idX, int idZ)
     {
-        if (!worldNames.contains(plot.getWorldName()) ||
-            !bmAPI.getMap(plot.getWorldName()).isPresent())
+        if (!worldNames.contains(worldName) || !layer.hasWorld(worldName))
         {
             return;
         }
-        String worldName = plot.getWorldName();
-        PlotId plotId = plot.getId();
-        int idX = plotId.getX();
-        int idZ = plotId.getY();
-
-        MarkerSet markerSet = markerSets.get(worldName);
-        markerSet.remove("shape" + worldName + idX + idZ);
+        long key = keys.key(worldName, idX, idZ);
+        
+        String plotKey = keys.plotKey(key);
+        plugin.pipeline.cancel(plotKey);
+        plugin.markerCache.remove(plotKey);
+        
+        String[] ids = keys.remove(key);
+        layer.removeMarkers(worldName, idX, idZ, Arrays.asList(ids));
     }
     
     // -------------------------------------------------------------------------
@@ -439,4 +535,19 @@ public final class ShapeMarkers implements Listener
         return Vector2d.from(totalSize, totalSize);
     }
     
+    // -------------------------------------------------------------------------
+    
+    // Start removing the shapes of plots which are gone, and shapes which
+    // don't belong to any plot
+    
+    @Override
+    public GhostSweep sweepGhosts(String worldName, Reconciler reconciler)
+    {
+        if (!worldNames.contains(worldName) || !layer.hasWorld(worldName))
+        {
+            return null;
+        }
+        return new GhostSweep(this, keys, layer, worldName, reconciler);
+    }
+
 }
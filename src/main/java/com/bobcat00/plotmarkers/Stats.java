@@ -0,0 +1,528 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bukkit.command.CommandSender;
+
+// Collects performance statistics for /plotmarkers stats and JMX. Builds are
+// recorded by the workers. Everything that's only safe to read on the main
+// thread is sampled once a second by a scheduler job.
+
+public final class Stats implements StatsMXBean
+{
+    // Build times of the most recent builds of one type
+    
+    private static final class Latency
+    {
+        private final long[] samples = new long[1024]; // nsec
+        private int count = 0;
+        private int next = 0;
+        
+        synchronized void record(long nanos)
+        {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+        
+        // Percentile in milliseconds, or 0 if there are no samples
+        
+        synchronized double percentile(double fraction)
+        {
+            if (count == 0)
+            {
+                return 0.0;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = Math.max((int)Math.ceil(fraction * count) - 1, 0);
+            return sorted[index] / 1_000_000.0;
+        }
+    }
+    
+    static final String objectName = "com.bobcat00.plotmarkers:type=Stats";
+    
+    // Markers built per second is averaged over this many seconds
+    final int rateSeconds = 10;
+    
+    final long sampleTicks = 20L;
+    
+    private PlotMarkers plugin;
+    
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+    
+    private final AtomicLong markersBuilt = new AtomicLong();
+    
+    // Markers built in each of the last few seconds
+    private final long[] builtSecond = new long[rateSeconds + 1];
+    private final long[] builtCount = new long[rateSeconds + 1];
+    
+    // Sampled on the main thread
+    private volatile int updateQueueDepth = 0;
+    private volatile long updatesRequested = 0;
+    private volatile long updatesMerged = 0;
+    private volatile int buildsInFlight = 0;
+    private volatile int pendingDeletes = 0;
+    private volatile int pendingUnlinks = 0;
+    private volatile Map<String, Integer> poiMarkerCounts = Collections.emptyMap();
+    private volatile Map<String, Integer> shapeMarkerCounts = Collections.emptyMap();
+    private volatile int markerSetCount = 0;
+    private volatile int ownerNamesPending = 0;
+    
+    private boolean registered = false;
+    
+    // -------------------------------------------------------------------------
+    
+    public Stats(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        plugin.scheduler.submit(this::sample);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Record a finished build. Called on a worker thread. The type is the
+    // producer's key prefix without the separator, e.g. poi or shape.
+    
+    public void recordBuild(String type, long nanos, int markers)
+    {
+        latencies.computeIfAbsent(type, k -> new Latency()).record(nanos);
+        
+        markersBuilt.addAndGet(markers);
+        long second = System.nanoTime() / 1_000_000_000L;
+        synchronized (builtCount)
+        {
+            int i = (int)(second % builtCount.length);
+            if (builtSecond[i] != second)
+            {
+                builtSecond[i] = second;
+                builtCount[i] = 0;
+            }
+            builtCount[i] += markers;
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Read the main thread data. Scheduler job which runs once and then
+    // resubmits itself.
+    
+    private boolean sample()
+    {
+        updateQueueDepth = plugin.updateQueue.getPending();
+        updatesRequested = plugin.updateQueue.getRequested();
+        updatesMerged = plugin.updateQueue.getMerged();
+        buildsInFlight = plugin.pipeline.getInFlight();
+        pendingDeletes = plugin.pendingPlots.getCount(PendingPlots.Kind.DELETE);
+        pendingUnlinks = plugin.pendingPlots.getCount(PendingPlots.Kind.UNLINK);
+        ownerNamesPending = plugin.ownerNames.getPending();
+        
+        Listeners listeners = plugin.listeners;
+        if (listeners != null)
+        {
+            poiMarkerCounts = countMarkers(listeners.getPoiLayer());
+            shapeMarkerCounts = countMarkers(listeners.getShapeLayer());
+            markerSetCount = listeners.getPoiLayer().getPartitionCount() +
+                             listeners.getShapeLayer().getPartitionCount();
+        }
+        
+        plugin.scheduler.submit(this::sample, sampleTicks);
+        return false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private Map<String, Integer> countMarkers(MarkerLayer layer)
+    {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (String worldName : layer.getWorlds())
+        {
+            counts.put(worldName, layer.getMarkerCount(worldName));
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Register with JMX. Any old registration, e.g. from before the plugin was
+    // reloaded, is replaced.
+    
+    public void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+            {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registered = true;
+        }
+        catch (JMException e)
+        {
+            plugin.getLogger().warning("Unable to register JMX stats: " + e.getMessage());
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    public void unregister()
+    {
+        if (!registered)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(objectName));
+        }
+        catch (JMException e)
+        {
+            // Already gone
+        }
+        registered = false;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Send the stats to a player or the console
+    
+    public void report(CommandSender sender)
+    {
+        sender.sendMessage("PlotMarkers stats:");
+        sender.sendMessage(String.format("Built: %d markers, %.1f/s", getMarkersBuilt(), getMarkersBuiltPerSecond()));
+        sender.sendMessage(String.format("POI build: p50 %.3f ms, p99 %.3f ms", getPoiBuildP50(), getPoiBuildP99()));
+        sender.sendMessage(String.format("Shape build: p50 %.3f ms, p99 %.3f ms", getShapeBuildP50(), getShapeBuildP99()));
+        sender.sendMessage(String.format("Tick: %.2f ms last, %.2f ms average, %.1f ms budget, server %.1f mspt",
+                                         getLastTickTime(), getAverageTickTime(), getTickBudget(), getServerMspt()));
+        sender.sendMessage("Queues: " + getSchedulerQueueDepth() + " jobs, " +
+                           getUpdateQueueDepth() + " updates, " +
+                           getBuildsInFlight() + " builds");
+        sender.sendMessage("Updates: " + getUpdatesRequested() + " requested, " + getUpdatesMerged() + " merged");
+        sender.sendMessage("Pending: " + getPendingDeletes() + " deletes, " + getPendingUnlinks() + " unlinks, " +
+                           getPendingExpired() + " expired, " + getPendingOrphaned() + " orphaned");
+        sender.sendMessage("Marker sets: " + getMarkerSetCount());
+        sender.sendMessage(String.format("Geometry cache: %d shapes, %d hits, %d misses, %d evictions, %.1f%% hit rate",
+                                         getGeometryCacheSize(), getGeometryCacheHits(), getGeometryCacheMisses(),
+                                         getGeometryCacheEvictions(), getGeometryCacheHitRate() * 100.0));
+        sender.sendMessage("Owner cache: " + getOwnerCacheSize() + " owners, " +
+                           getOwnerCacheHits() + " hits, " +
+                           getOwnerCacheMisses() + " misses, " +
+                           getOwnerCacheEvictions() + " evictions");
+        sender.sendMessage("Owner names: " + getOwnerNamesKnown() + " known, " +
+                           getOwnerNamesPending() + " pending, " +
+                           getOwnerNamesResolved() + " found, " +
+                           getOwnerNamesUnresolved() + " not found");
+        sender.sendMessage("Reconcile: " + getReconcileRuns() + " runs, last " +
+                           getReconcileAdded() + " added, " +
+                           getReconcileUpdated() + " updated, " +
+                           getReconcileRemoved() + " removed, " +
+                           getReconcileStrays() + " stray markers");
+        
+        Map<String, Integer> poiCounts = getPoiMarkerCounts();
+        Map<String, Integer> shapeCounts = getShapeMarkerCounts();
+        for (Map.Entry<String, Integer> entry : poiCounts.entrySet())
+        {
+            Integer shapes = shapeCounts.get(entry.getKey());
+            sender.sendMessage("World " + entry.getKey() + ": " +
+                               entry.getValue() + " POI, " +
+                               (shapes != null ? shapes : 0) + " shapes");
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // StatsMXBean
+    
+    @Override
+    public long getMarkersBuilt()
+    {
+        return markersBuilt.get();
+    }
+    
+    // Average over the last complete seconds
+    
+    @Override
+    public double getMarkersBuiltPerSecond()
+    {
+        long second = System.nanoTime() / 1_000_000_000L;
+        long total = 0;
+        synchronized (builtCount)
+        {
+            for (int i = 0; i < builtCount.length; ++i)
+            {
+                if (builtSecond[i] < second && builtSecond[i] >= second - rateSeconds)
+                {
+                    total += builtCount[i];
+                }
+            }
+        }
+        return (double)total / rateSeconds;
+    }
+    
+    @Override
+    public double getPoiBuildP50()
+    {
+        return percentile("poi", 0.50);
+    }
+    
+    @Override
+    public double getPoiBuildP99()
+    {
+        return percentile("poi", 0.99);
+    }
+    
+    @Override
+    public double getShapeBuildP50()
+    {
+        return percentile("shape", 0.50);
+    }
+    
+    @Override
+    public double getShapeBuildP99()
+    {
+        return percentile("shape", 0.99);
+    }
+    
+    @Override
+    public double getLastTickTime()
+    {
+        return plugin.scheduler.getLastUsed() / 1_000_000.0;
+    }
+    
+    @Override
+    public double getAverageTickTime()
+    {
+        long ticks = plugin.scheduler.getCurrentTick();
+        return ticks == 0 ? 0.0 : plugin.scheduler.getTotalUsed() / 1_000_000.0 / ticks;
+    }
+    
+    @Override
+    public double getTickBudget()
+    {
+        return plugin.scheduler.getBudget() / 1_000_000.0;
+    }
+    
+    @Override
+    public double getServerMspt()
+    {
+        return plugin.scheduler.getMspt();
+    }
+    
+    @Override
+    public int getSchedulerQueueDepth()
+    {
+        return plugin.scheduler.getQueueDepth();
+    }
+    
+    @Override
+    public int getUpdateQueueDepth()
+    {
+        return updateQueueDepth;
+    }
+    
+    @Override
+    public int getBuildsInFlight()
+    {
+        return buildsInFlight;
+    }
+    
+    @Override
+    public long getUpdatesRequested()
+    {
+        return updatesRequested;
+    }
+    
+    @Override
+    public long getUpdatesMerged()
+    {
+        return updatesMerged;
+    }
+    
+    @Override
+    public int getPendingDeletes()
+    {
+        return pendingDeletes;
+    }
+    
+    @Override
+    public int getPendingUnlinks()
+    {
+        return pendingUnlinks;
+    }
+    
+    @Override
+    public long getPendingExpired()
+    {
+        return plugin.pendingPlots.getExpired();
+    }
+    
+    @Override
+    public long getPendingOrphaned()
+    {
+        return plugin.pendingPlots.getOrphaned();
+    }
+    
+    @Override
+    public Map<String, Integer> getPoiMarkerCounts()
+    {
+        return poiMarkerCounts;
+    }
+    
+    @Override
+    public Map<String, Integer> getShapeMarkerCounts()
+    {
+        return shapeMarkerCounts;
+    }
+    
+    @Override
+    public int getMarkerSetCount()
+    {
+        return markerSetCount;
+    }
+    
+    @Override
+    public int getGeometryCacheSize()
+    {
+        return plugin.geometryCache.size();
+    }
+    
+    @Override
+    public long getGeometryCacheHits()
+    {
+        return plugin.geometryCache.getHits();
+    }
+    
+    @Override
+    public long getGeometryCacheMisses()
+    {
+        return plugin.geometryCache.getMisses();
+    }
+    
+    @Override
+    public long getGeometryCacheEvictions()
+    {
+        return plugin.geometryCache.getEvictions();
+    }
+    
+    @Override
+    public double getGeometryCacheHitRate()
+    {
+        return plugin.geometryCache.getHitRate();
+    }
+    
+    @Override
+    public int getOwnerCacheSize()
+    {
+        return plugin.ownerCache.size();
+    }
+    
+    @Override
+    public long getOwnerCacheHits()
+    {
+        return plugin.ownerCache.getHits();
+    }
+    
+    @Override
+    public long getOwnerCacheMisses()
+    {
+        return plugin.ownerCache.getMisses();
+    }
+    
+    @Override
+    public long getOwnerCacheEvictions()
+    {
+        return plugin.ownerCache.getEvictions();
+    }
+    
+    @Override
+    public int getOwnerNamesKnown()
+    {
+        return plugin.ownerNames.size();
+    }
+    
+    @Override
+    public int getOwnerNamesPending()
+    {
+        return ownerNamesPending;
+    }
+    
+    @Override
+    public long getOwnerNamesResolved()
+    {
+        return plugin.ownerNames.getResolved();
+    }
+    
+    @Override
+    public long getOwnerNamesUnresolved()
+    {
+        return plugin.ownerNames.getUnresolved();
+    }
+    
+    @Override
+    public long getReconcileRuns()
+    {
+        return plugin.reconciler.getRuns();
+    }
+    
+    @Override
+    public int getReconcileAdded()
+    {
+        return plugin.reconciler.getLastAdded();
+    }
+    
+    @Override
+    public int getReconcileUpdated()
+    {
+        return plugin.reconciler.getLastUpdated();
+    }
+    
+    @Override
+    public int getReconcileRemoved()
+    {
+        return plugin.reconciler.getLastRemoved();
+    }
+    
+    @Override
+    public int getReconcileStrays()
+    {
+        return plugin.reconciler.getLastStrays();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private double percentile(String type, double fraction)
+    {
+        Latency latency = latencies.get(type);
+        return latency == null ? 0.0 : latency.percentile(fraction);
+    }
+
+}
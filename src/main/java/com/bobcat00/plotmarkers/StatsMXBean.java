@@ -0,0 +1,99 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Map;
+
+// Performance statistics available through JMX as
+// com.bobcat00.plotmarkers:type=Stats. Times are in milliseconds. Values
+// which come from the main thread are sampled once a second.
+
+public interface StatsMXBean
+{
+    // Markers built by the workers
+    long getMarkersBuilt();
+    double getMarkersBuiltPerSecond();
+    
+    // Build latency of the last builds of each type
+    double getPoiBuildP50();
+    double getPoiBuildP99();
+    double getShapeBuildP50();
+    double getShapeBuildP99();
+    
+    // Time used on the main thread by the scheduler
+    double getLastTickTime();
+    double getAverageTickTime();
+    double getTickBudget();
+    double getServerMspt();
+    
+    // Work waiting to be done
+    int getSchedulerQueueDepth();
+    int getUpdateQueueDepth();
+    int getBuildsInFlight();
+    
+    // Updates requested by plot events, and those merged into an update which
+    // was already waiting
+    long getUpdatesRequested();
+    long getUpdatesMerged();
+    
+    // Plots waiting for the second half of a delete or unlink
+    int getPendingDeletes();
+    int getPendingUnlinks();
+    
+    // Pending plots dropped before they were used, e.g. because the delete
+    // was cancelled, and post events with no pending plots
+    long getPendingExpired();
+    long getPendingOrphaned();
+    
+    // Markers in each world
+    Map<String, Integer> getPoiMarkerCounts();
+    Map<String, Integer> getShapeMarkerCounts();
+    
+    // Marker sets in all the worlds, more than two per world if partitioned
+    int getMarkerSetCount();
+    
+    // Geometry cache entries, lookups found in the cache, lookups which built
+    // a new polygon, and entries dropped to stay under the size limit. The hit
+    // rate is 0 to 1.
+    int getGeometryCacheSize();
+    long getGeometryCacheHits();
+    long getGeometryCacheMisses();
+    long getGeometryCacheEvictions();
+    double getGeometryCacheHitRate();
+    
+    // Owner cache entries, lookups found in the cache, lookups which went to
+    // Bukkit, and entries dropped to stay under the size limit
+    int getOwnerCacheSize();
+    long getOwnerCacheHits();
+    long getOwnerCacheMisses();
+    long getOwnerCacheEvictions();
+    
+    // Owner names saved, owners being looked up, and owners PlotSquared found
+    // or couldn't find
+    int getOwnerNamesKnown();
+    int getOwnerNamesPending();
+    long getOwnerNamesResolved();
+    long getOwnerNamesUnresolved();
+    
+    // Reconcile runs, the plots fixed by the last one, and the markers it
+    // removed which didn't belong to any plot
+    long getReconcileRuns();
+    int getReconcileAdded();
+    int getReconcileUpdated();
+    int getReconcileRemoved();
+    int getReconcileStrays();
+}
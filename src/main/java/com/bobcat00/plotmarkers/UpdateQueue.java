@@ -0,0 +1,178 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.plotsquared.core.plot.Plot;
+
+// Queue of plot updates from events. Requests for the same plot within a
+// short window are merged into a single rebuild, e.g. a claim followed by a
+// setowner, or a player relogging several times. A text-only request just
+// updates the label and detail, unless it's merged with a full rebuild. Due
+// updates are passed to PlotEvents, which captures the plot once for all the
+// producers. Only used on the main thread.
+
+public final class UpdateQueue
+{
+    // A pending update
+    
+    private static final class Update
+    {
+        final Plot plot;
+        final long dueTick;
+        boolean textOnly;
+        
+        Update(Plot plot, long dueTick, boolean textOnly)
+        {
+            this.plot = plot;
+            this.dueTick = dueTick;
+            this.textOnly = textOnly;
+        }
+    }
+    
+    private PlotMarkers plugin;
+    
+    // Time to wait for more requests for the same plot
+    final long windowTicks = 10;
+    
+    // Pending updates in the order they were requested. Since the window is
+    // the same for all requests, they're also in due order.
+    private final LinkedHashMap<String, Update> pending = new LinkedHashMap<String, Update>();
+    
+    // True while a job is queued in the scheduler
+    private boolean jobScheduled = false;
+    
+    // Statistics
+    private long requested = 0;
+    private long merged = 0;
+    
+    // -------------------------------------------------------------------------
+    
+    public UpdateQueue(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Request a rebuild of a plot's markers
+    
+    public void request(Plot plot)
+    {
+        request(plot, false);
+    }
+    
+    // Request an update of the label and detail of a plot's markers
+    
+    public void requestText(Plot plot)
+    {
+        request(plot, true);
+    }
+    
+    private void request(Plot plot, boolean textOnly)
+    {
+        ++requested;
+        
+        String key = key(plot.getWorldName(), plot.getId().getX(), plot.getId().getY());
+        Update update = pending.get(key);
+        if (update != null)
+        {
+            ++merged;
+            update.textOnly &= textOnly;
+            return;
+        }
+        pending.put(key, new Update(plot, plugin.scheduler.getCurrentTick() + windowTicks, textOnly));
+        
+        if (!jobScheduled)
+        {
+            jobScheduled = true;
+            plugin.scheduler.submit(this::process, windowTicks);
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Drop a pending update, e.g. because the plot is being deleted
+    
+    public void cancel(String worldName, int idX, int idZ)
+    {
+        pending.remove(key(worldName, idX, idZ));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Run one due update. Scheduler job.
+    
+    private boolean process()
+    {
+        Iterator<Map.Entry<String, Update>> it = pending.entrySet().iterator();
+        if (!it.hasNext())
+        {
+            jobScheduled = false;
+            return false;
+        }
+        
+        Update update = it.next().getValue();
+        long now = plugin.scheduler.getCurrentTick();
+        if (update.dueTick > now)
+        {
+            // Wait for the next one to be due
+            plugin.scheduler.submit(this::process, update.dueTick - now);
+            return false;
+        }
+        it.remove();
+        
+        // The plot may have been deleted while the update was waiting
+        if (update.plot.hasOwner())
+        {
+            plugin.plotEvents.update(update.plot, update.textOnly);
+        }
+        return true;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    private String key(String worldName, int idX, int idZ)
+    {
+        return worldName + ";" + idX + ";" + idZ;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Statistics
+    
+    public int getPending()
+    {
+        return pending.size();
+    }
+    
+    public long getRequested()
+    {
+        return requested;
+    }
+    
+    // Number of requests merged into an update that was already pending
+    
+    public long getMerged()
+    {
+        return merged;
+    }
+
+}
@@ -0,0 +1,307 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+
+// Runs all the plugin's main thread work from a single task with one time
+// budget per tick. Jobs are run a step at a time in round robin order until
+// the budget is used up. The budget shrinks when the server is busy and grows
+// when it's idle.
+
+public final class WorkScheduler
+{
+    // A job is run one step at a time on the main thread. Each step should do
+    // a small amount of work and return false when the job is finished.
+    
+    public interface Job
+    {
+        boolean step();
+    }
+    
+    // A job waiting for its delay to expire
+    
+    private static final class DelayedJob
+    {
+        final Job job;
+        final long dueTick;
+        
+        DelayedJob(Job job, long dueTick)
+        {
+            this.job = job;
+            this.dueTick = dueTick;
+        }
+    }
+    
+    private PlotMarkers plugin;
+    
+    // Limits of the per-tick budget
+    final long minBudget     =  1_000_000L; // nsec
+    final long initialBudget = 10_000_000L; // nsec
+    final long maxBudget     = 25_000_000L; // nsec
+    
+    // Server tick time thresholds for adjusting the budget
+    final double highMspt = 45.0;
+    final double lowMspt  = 30.0;
+    
+    // Tick time at which the server starts to lag
+    final double tickMspt = 50.0;
+    
+    // Time between ticks thresholds, used if the tick time isn't available
+    final double highInterval = 55.0;
+    final double lowInterval  = 51.0;
+    
+    private final PlatformScheduler.Task task;
+    
+    // Jobs may be submitted from any thread
+    private final ConcurrentLinkedQueue<Job> incoming = new ConcurrentLinkedQueue<Job>();
+    private final ConcurrentLinkedQueue<DelayedJob> incomingDelayed = new ConcurrentLinkedQueue<DelayedJob>();
+    
+    // Only used on the main thread
+    private final ArrayDeque<Job> active = new ArrayDeque<Job>();
+    private final LinkedList<DelayedJob> delayed = new LinkedList<DelayedJob>();
+    private long currentTick = 0;
+    private long lastTickStart = 0;
+    
+    // Paper's average tick time, if available
+    private Method averageTickTime = null;
+    
+    // Statistics
+    private volatile long budget = initialBudget;
+    private volatile long lastUsed = 0;
+    private volatile long totalUsed = 0;
+    private volatile double mspt = 0.0;
+    
+    // -------------------------------------------------------------------------
+    
+    public WorkScheduler(PlotMarkers plugin)
+    {
+        this.plugin = plugin;
+        
+        // Folia has no single server tick time
+        if (!plugin.platformScheduler.isFolia())
+        {
+            try
+            {
+                averageTickTime = Bukkit.getServer().getClass().getMethod("getAverageTickTime");
+            }
+            catch (NoSuchMethodException | SecurityException e)
+            {
+                // Not Paper, use the time between ticks instead
+            }
+        }
+        
+        task = plugin.platformScheduler.runGlobalTimer(() -> tick(), 1L, 1L); // delay 1, period 1
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Add a job to the queue. May be called from any thread.
+    
+    public void submit(Job job)
+    {
+        incoming.add(job);
+    }
+    
+    // Add a job to the queue after a delay in ticks. May be called from any
+    // thread.
+    
+    public void submit(Job job, long delayTicks)
+    {
+        incomingDelayed.add(new DelayedJob(job, delayTicks));
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Run jobs until the budget for this tick is used up
+    
+    private void tick()
+    {
+        ++currentTick;
+        long startTime = System.nanoTime();
+        updateBudget(startTime);
+        
+        // Pick up new jobs
+        
+        Job job;
+        while ((job = incoming.poll()) != null)
+        {
+            active.addLast(job);
+        }
+        
+        DelayedJob delayedJob;
+        while ((delayedJob = incomingDelayed.poll()) != null)
+        {
+            delayed.add(new DelayedJob(delayedJob.job, currentTick + delayedJob.dueTick));
+        }
+        Iterator<DelayedJob> it = delayed.iterator();
+        while (it.hasNext())
+        {
+            delayedJob = it.next();
+            if (delayedJob.dueTick <= currentTick)
+            {
+                active.addLast(delayedJob.job);
+                it.remove();
+            }
+        }
+        
+        // Run jobs
+        
+        long deadline = startTime + budget;
+        while ((job = active.pollFirst()) != null)
+        {
+            boolean more = false;
+            try
+            {
+                more = job.step();
+            }
+            catch (RuntimeException e)
+            {
+                plugin.getLogger().log(Level.WARNING, "Exception running scheduled job", e);
+            }
+            if (more)
+            {
+                active.addLast(job);
+            }
+            if (System.nanoTime() >= deadline)
+            {
+                break;
+            }
+        }
+        
+        lastUsed = System.nanoTime() - startTime;
+        totalUsed += lastUsed;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Shrink the budget when the server is busy and grow it when the server is
+    // idle
+    
+    private void updateBudget(long now)
+    {
+        boolean busy = false;
+        boolean idle = false;
+        
+        if (averageTickTime != null)
+        {
+            try
+            {
+                mspt = ((Number)averageTickTime.invoke(Bukkit.getServer())).doubleValue();
+                busy = mspt > highMspt;
+                idle = mspt < lowMspt;
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                averageTickTime = null;
+            }
+        }
+        else if (lastTickStart != 0)
+        {
+            // Time between ticks is only a rough measure since it can't be
+            // less than 50 ms. Smooth it since single ticks vary a lot.
+            double interval = (now - lastTickStart) / 1_000_000.0;
+            mspt = mspt == 0.0 ? interval : mspt * 0.9 + interval * 0.1;
+            busy = mspt > highInterval;
+            idle = mspt < lowInterval;
+        }
+        lastTickStart = now;
+        
+        if (busy)
+        {
+            budget = Math.max(minBudget, budget / 2);
+        }
+        else if (idle)
+        {
+            budget = Math.min(maxBudget, budget + 500_000L);
+        }
+        
+        // The average tick time is slow to catch up, so never use more than
+        // the time left in the tick, or a server near the limit could be
+        // pushed past it
+        if (averageTickTime != null)
+        {
+            long headroom = (long)((tickMspt - mspt) * 1_000_000.0);
+            budget = Math.max(minBudget, Math.min(budget, headroom));
+        }
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Statistics
+    
+    // Current per-tick budget in nanoseconds
+    
+    public long getBudget()
+    {
+        return budget;
+    }
+    
+    // Time used in the last tick in nanoseconds
+    
+    public long getLastUsed()
+    {
+        return lastUsed;
+    }
+    
+    // Total time used in nanoseconds
+    
+    public long getTotalUsed()
+    {
+        return totalUsed;
+    }
+    
+    // Server tick time in milliseconds. This is the time between ticks if
+    // the server doesn't report its tick time.
+    
+    public double getMspt()
+    {
+        return mspt;
+    }
+    
+    // Current tick number, counted from when the scheduler started
+    
+    public long getCurrentTick()
+    {
+        return currentTick;
+    }
+    
+    // Number of jobs waiting to run. Approximate if not called on the main
+    // thread.
+    
+    public int getQueueDepth()
+    {
+        return active.size() + delayed.size() + incoming.size() + incomingDelayed.size();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Stop running jobs
+    
+    public void shutdown()
+    {
+        task.cancel();
+    }
+
+}
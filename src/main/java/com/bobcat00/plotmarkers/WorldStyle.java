@@ -0,0 +1,122 @@
+// PlotMarkers - Add plot markers to BlueMap map
+// Copyright 2024 Bobcat00
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bobcat00.plotmarkers;
+
+import de.bluecolored.bluemap.api.math.Color;
+
+// Marker style for one world. This is built by Config when the config file is
+// loaded, so creating a marker only has to read these fields.
+
+public final class WorldStyle
+{
+    // If false, the average height of each plot is used instead of y
+    final boolean overrideY;
+    final int y;
+    
+    // Empty if the default icon is used
+    final String customIcon;
+    final int customIconAnchorX;
+    final int customIconAnchorY;
+    
+    // Shared by all the shape markers in this world
+    final Color fillColor;
+    final Color lineColor;
+    final int lineWidth;
+    
+    // Camera distance where the POI markers are hidden, 0 if they're always
+    // shown
+    final double poiMaxDistance;
+    
+    // -------------------------------------------------------------------------
+    
+    WorldStyle(boolean overrideY,
+               int y,
+               String customIcon,
+               int customIconAnchorX,
+               int customIconAnchorY,
+               Color fillColor,
+               Color lineColor,
+               int lineWidth,
+               double poiMaxDistance)
+    {
+        this.overrideY = overrideY;
+        this.y = y;
+        this.customIcon = customIcon;
+        this.customIconAnchorX = customIconAnchorX;
+        this.customIconAnchorY = customIconAnchorY;
+        this.fillColor = fillColor;
+        this.lineColor = lineColor;
+        this.lineWidth = lineWidth;
+        this.poiMaxDistance = poiMaxDistance;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Get the y coordinate for a marker, given the plot's top and bottom y
+    
+    double getY(double topY, double bottomY)
+    {
+        if (overrideY)
+        {
+            // Use value from config
+            return y;
+        }
+        // Use plot heights
+        return (topY + bottomY) / 2.0;
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    boolean hasCustomIcon()
+    {
+        return !customIcon.isEmpty();
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Check if the settings which affect marker positions are the same
+    
+    boolean sameGeometry(WorldStyle other)
+    {
+        return overrideY == other.overrideY &&
+               (!overrideY || y == other.y);
+    }
+    
+    // -------------------------------------------------------------------------
+    
+    // Check if the settings which only affect marker appearance are the same
+    
+    boolean sameStyle(WorldStyle other)
+    {
+        return customIcon.equals(other.customIcon) &&
+               customIconAnchorX == other.customIconAnchorX &&
+               customIconAnchorY == other.customIconAnchorY &&
+               sameColor(fillColor, other.fillColor) &&
+               sameColor(lineColor, other.lineColor) &&
+               lineWidth == other.lineWidth &&
+               poiMaxDistance == other.poiMaxDistance;
+    }
+    
+    private static boolean sameColor(Color a, Color b)
+    {
+        return a.getRed() == b.getRed() &&
+               a.getGreen() == b.getGreen() &&
+               a.getBlue() == b.getBlue() &&
+               a.getAlpha() == b.getAlpha();
+    }
+
+}